@@ -8,6 +8,7 @@ plugins {
     java
     application
     id("com.gradleup.shadow") version "8.3.4"
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group="org.mongodb"
@@ -32,6 +33,8 @@ repositories {
 dependencies {
     implementation("ch.qos.logback:logback-classic:1.4.12")
     implementation("org.mongodb:mongodb-driver-sync:4.11.4")
+    implementation("org.mongodb:mongodb-driver-reactivestreams:4.11.4")
+    implementation("org.hdrhistogram:HdrHistogram:2.2.2")
     implementation("commons-cli:commons-cli:1.4")
     implementation("commons-codec:commons-codec:1.15")
     implementation("com.google.code.gson:gson:2.8.9")
@@ -42,6 +45,12 @@ dependencies {
     testImplementation("junit:junit:4.13.2")
 }
 
+// gradle jmh, benchmarks are in src/jmh - add -PjmhInclude=<regex> to run only some
+jmh {
+    resultFormat.set("JSON")
+    (project.findProperty("jmhInclude") as String?)?.let { includes.add(it) }
+}
+
 tasks {
     jar {
         manifest {
@@ -0,0 +1,32 @@
+package com.johnlpage.pocdriver;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The lorem ipsum text fields, -l sets the length
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CreateStringBenchmark {
+
+    @Param({"30", "500", "4000"})
+    int length;
+
+    private TestRecord record;
+
+    @Setup
+    public void setup() {
+        record = new TestRecord(1, 0, 30, 0, 0, 1000000, new int[]{0, 0}, 0, null);
+    }
+
+    @Benchmark
+    public String createString() {
+        return record.CreateString(length);
+    }
+}
@@ -0,0 +1,45 @@
+package com.johnlpage.pocdriver;
+
+import org.apache.commons.cli.ParseException;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picking the next key (MongoWorker.getNextVal) in each of its modes
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyDistributionBenchmark {
+
+    @Param({"uniform", "zipfian", "timesliced"})
+    String mode;
+
+    private KeyDistribution keys;
+
+    @Setup
+    public void setup() throws ParseException {
+        String[] args;
+        switch (mode) {
+            case "uniform":
+                args = new String[]{"--opsratio"};
+                break;
+            case "zipfian":
+                args = new String[]{"-z", "1000000"};
+                break;
+            default:
+                args = new String[0];
+        }
+        keys = new KeyDistribution(new POCTestOptions(args), new Random());
+    }
+
+    @Benchmark
+    public int next() {
+        return keys.next(1000000);
+    }
+}
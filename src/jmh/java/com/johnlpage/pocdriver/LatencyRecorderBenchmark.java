@@ -0,0 +1,83 @@
+package com.johnlpage.pocdriver;
+
+import org.apache.commons.cli.ParseException;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a worker pays to record one op - its latency and the op count - with
+ * many workers at once. owned* is a recorder per worker as platform threads have,
+ * shared* is the per-CPU shared recorders used with --virtualthreads and the async engine.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LatencyRecorderBenchmark {
+
+    POCTestResults results;
+    LatencyRecorder shared;
+
+    @Setup
+    public void setup() throws ParseException {
+        results = new POCTestResults(new POCTestOptions(new String[0]));
+        shared = results.newLatencyRecorder(true);
+    }
+
+    @State(Scope.Thread)
+    public static class Worker {
+        LatencyRecorder owned;
+        long micros = 0;
+
+        @Setup
+        public void setup(LatencyRecorderBenchmark benchmark) {
+            owned = benchmark.results.newLatencyRecorder();
+        }
+    }
+
+    private void record(LatencyRecorder recorder, Worker w) {
+        // Vary it so we don't always hit the same bucket
+        w.micros = (w.micros + 97) & 0xffff;
+        recorder.record(OpType.KEYQUERIES, w.micros, 1);
+        results.RecordOpsDone(OpType.KEYQUERIES, 1);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void owned1(Worker w) {
+        record(w.owned, w);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public void owned32(Worker w) {
+        record(w.owned, w);
+    }
+
+    @Benchmark
+    @Threads(128)
+    public void owned128(Worker w) {
+        record(w.owned, w);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void shared1(Worker w) {
+        record(shared, w);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public void shared32(Worker w) {
+        record(shared, w);
+    }
+
+    @Benchmark
+    @Threads(128)
+    public void shared128(Worker w) {
+        record(shared, w);
+    }
+}
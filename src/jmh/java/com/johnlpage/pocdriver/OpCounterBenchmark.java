@@ -0,0 +1,92 @@
+package com.johnlpage.pocdriver;
+
+import org.apache.commons.cli.ParseException;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost of counting an op with lots of workers doing it at once.
+ * legacy* is how POCTestResults used to do it, a String keyed map of AtomicLongs,
+ * the others go through RecordOpsDone as the workers do now.
+ * <p>
+ * JMH can't make the thread count a parameter so there's one method per count.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OpCounterBenchmark {
+
+    private POCTestResults results;
+    private ConcurrentHashMap<String, AtomicLong> legacy;
+
+    @Setup
+    public void setup() throws ParseException {
+        results = new POCTestResults(new POCTestOptions(new String[0]));
+        legacy = new ConcurrentHashMap<>();
+        for (OpType o : OpType.ALL) {
+            legacy.put(o.toString(), new AtomicLong());
+        }
+    }
+
+    private void recordLegacy() {
+        legacy.get("keyqueries").addAndGet(1);
+    }
+
+    private void record() {
+        results.RecordOpsDone(OpType.KEYQUERIES, 1);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void legacy1() {
+        recordLegacy();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void legacy8() {
+        recordLegacy();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public void legacy32() {
+        recordLegacy();
+    }
+
+    @Benchmark
+    @Threads(128)
+    public void legacy128() {
+        recordLegacy();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void striped1() {
+        record();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void striped8() {
+        record();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public void striped32() {
+        record();
+    }
+
+    @Benchmark
+    @Threads(128)
+    public void striped128() {
+        record();
+    }
+}
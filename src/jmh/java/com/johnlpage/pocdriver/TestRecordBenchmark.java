@@ -0,0 +1,61 @@
+package com.johnlpage.pocdriver;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building and encoding the insert documents, over the -f/--depth/-l/--binary shapes.
+ * JMH forks per parameter set so TestRecord's cached array and blob match each shape.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TestRecordBenchmark {
+
+    @Param({"10", "100"})
+    int numFields;
+
+    @Param({"0", "2"})
+    int depth;
+
+    @Param({"30", "1000"})
+    int textFieldLen;
+
+    @Param({"0", "64"})
+    int binary;
+
+    private final int[] arrays = new int[]{0, 0};
+    private int sequence = 0;
+    private TestRecord record;
+    private RawRecordTemplate template;
+
+    private TestRecord newTestRecord() {
+        return new TestRecord(numFields, depth, textFieldLen, 1, sequence++, 1000000, arrays, binary, null);
+    }
+
+    @Setup
+    public void setup() {
+        record = newTestRecord();
+        template = new RawRecordTemplate(record.toBson(), 1000000, 42);
+    }
+
+    @Benchmark
+    public Object newRecord() {
+        return newTestRecord().internalDoc;
+    }
+
+    @Benchmark
+    public byte[] toBson() {
+        return record.toBson();
+    }
+
+    // What --rawbson does instead of the two above
+    @Benchmark
+    public Object rawRecord() {
+        return template.newRecord(1, sequence++);
+    }
+}
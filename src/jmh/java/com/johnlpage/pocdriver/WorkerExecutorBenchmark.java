@@ -0,0 +1,57 @@
+package com.johnlpage.pocdriver;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A thread per worker the way LoadRunner does it, platform threads against --virtualthreads.
+ * Each worker does a few ops that mostly wait on the server, here a 1ms park, so this is
+ * the cost of starting, switching and finishing that many workers.
+ * "virtual" needs a Java 21 runtime.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WorkerExecutorBenchmark {
+    private static final int OPS_PER_WORKER = 10;
+
+    @Param({"1000", "10000", "50000"})
+    int workers;
+
+    @Param({"platform", "virtual"})
+    String executor;
+
+    private ExecutorService newExecutor() throws ReflectiveOperationException {
+        if (executor.equals("virtual")) {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }
+        return Executors.newFixedThreadPool(workers);
+    }
+
+    @Benchmark
+    public void runWorkers() throws Exception {
+        ExecutorService exec = newExecutor();
+        CountDownLatch done = new CountDownLatch(workers);
+        for (int i = 0; i < workers; i++) {
+            exec.execute(() -> {
+                for (int op = 0; op < OPS_PER_WORKER; op++) {
+                    LockSupport.parkNanos(1_000_000);
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+        exec.shutdown();
+        exec.awaitTermination(1, TimeUnit.MINUTES);
+    }
+}
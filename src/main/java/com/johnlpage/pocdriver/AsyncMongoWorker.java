@@ -0,0 +1,447 @@
+package com.johnlpage.pocdriver;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import org.bson.Document;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static com.mongodb.client.model.Projections.fields;
+import static com.mongodb.client.model.Projections.include;
+
+/**
+ * Worker for the async engine - rather than waiting for each op it keeps up to
+ * testOpts.asyncInFlight ops outstanding on the reactive streams driver.
+ * When they are all in flight the worker blocks until one finishes, that's our backpressure.
+ * <p>
+ * Same op mix and results as MongoWorker but no workflows and only the one collection.
+ */
+public class AsyncMongoWorker implements Runnable {
+
+    private static final int OP_INSERT = 0;
+    private static final int OP_KEYQUERY = 1;
+    private static final int OP_RANGEQUERY = 2;
+    private static final int OP_UPDATE = 3;
+    private static final int OP_ARRAYUPDATE = 4;
+
+    private final POCTestOptions testOpts;
+    private final POCTestResults testResults;
+    private final int workerID;
+    private final Random rng;
+    private final MongoCollection<Document> coll;
+    // coll with --readpref and --readconcern applied
+    private final MongoCollection<Document> keyQueryColl;
+    private final MongoCollection<Document> rangeQueryColl;
+    private final BulkWriteOptions bulkOptions = new BulkWriteOptions();
+    private final OpScheduler opScheduler;
+    private final Semaphore inFlight;
+    // Completions arrive on the driver's threads so this one is shared
+    private final LatencyRecorder latencies;
+    private final DocumentPool docPool;
+    Logger logger;
+    private int sequence;
+    private final KeyDistribution keys;
+
+    AsyncMongoWorker(MongoClient c, com.mongodb.client.MongoClient syncClient, POCTestOptions t,
+                     POCTestResults r, int id, DocumentPool pool) {
+        logger = LoggerFactory.getLogger(AsyncMongoWorker.class);
+        docPool = pool;
+        testOpts = t;
+        testResults = r;
+        workerID = id;
+        MongoCollection<Document> base = c.getDatabase(testOpts.databaseName).getCollection(testOpts.collectionName);
+        coll = testOpts.consistency.writeConcern() != null
+                ? base.withWriteConcern(testOpts.consistency.writeConcern()) : base;
+        keyQueryColl = testOpts.consistency.forRead(coll, OpType.KEYQUERIES);
+        rangeQueryColl = testOpts.consistency.forRead(coll, OpType.RANGEQUERIES);
+        // Startup isn't worth doing asynchronously
+        sequence = MongoWorker.findHighestID(
+                syncClient.getDatabase(testOpts.databaseName).getCollection(testOpts.collectionName), workerID);
+        latencies = r.newLatencyRecorder(true);
+        inFlight = new Semaphore(testOpts.asyncInFlight);
+        rng = new Random();
+        keys = new KeyDistribution(testOpts, rng);
+        int[] weights = new int[]{testOpts.insertops, testOpts.keyqueries, testOpts.rangequeries,
+                testOpts.updates, testOpts.arrayupdates};
+        opScheduler = OpScheduler.forOptions(testOpts, weights, rng);
+        bulkOptions.ordered(testOpts.orderedBatch);
+    }
+
+    private int getNextVal(int mult) {
+        return keys.next(mult);
+    }
+
+    private Document keyInWorkingSet() {
+        int range = sequence * testOpts.workingset / 100;
+        int rest = sequence - range;
+        return new Document("w", workerID).append("i", rest + getNextVal(range));
+    }
+
+    private List<String> projectedFields() {
+        List<String> projFields = new ArrayList<>();
+        int numProjFields = Math.min(testOpts.projectFields, testOpts.numFields);
+        for (int i = 0; i < numProjFields; i++) {
+            projFields.add("fld" + i);
+        }
+        return projFields;
+    }
+
+    private void flushBulkOps(List<WriteModel<Document>> bulkWriter) throws InterruptedException {
+        inFlight.acquire();
+        new BatchWrite(new ArrayList<>(bulkWriter)).send();
+    }
+
+    private void simpleKeyQuery() throws InterruptedException {
+        Document query = new Document("_id", keyInWorkingSet());
+        inFlight.acquire();
+        OpSubscriber<Document> subscriber = new OpSubscriber<Document>(OpType.KEYQUERIES) {
+            @Override
+            void completed(long takenNanos) {
+                if (items > 0) {
+                    latencies.record(OpType.KEYQUERIES, takenNanos / 1000, 1);
+                    testResults.RecordOpsDone(OpType.KEYQUERIES, 1);
+                }
+            }
+        };
+        if (testOpts.projectFields == 0) {
+            keyQueryColl.find(query).first().subscribe(subscriber);
+        } else {
+            keyQueryColl.find(query).projection(fields(include(projectedFields()))).first().subscribe(subscriber);
+        }
+    }
+
+    private void rangeQuery() throws InterruptedException {
+        Document query = new Document("_id",
+                new Document("$gt", new Document("w", workerID).append("i", getNextVal(sequence))));
+        inFlight.acquire();
+        OpSubscriber<Document> subscriber = new OpSubscriber<Document>(OpType.RANGEQUERIES) {
+            @Override
+            void completed(long takenNanos) {
+                latencies.record(OpType.RANGEQUERIES, takenNanos / 1000, 1);
+                testResults.RecordOpsDone(OpType.RANGEQUERIES, 1);
+            }
+        };
+        if (testOpts.projectFields == 0) {
+            rangeQueryColl.find(query).limit(testOpts.rangeDocs).subscribe(subscriber);
+        } else {
+            rangeQueryColl.find(query).projection(fields(include(projectedFields()))).limit(testOpts.rangeDocs)
+                    .subscribe(subscriber);
+        }
+    }
+
+    private void updateSingleRecord(List<WriteModel<Document>> bulkWriter) {
+        Document query = new Document("_id", keyInWorkingSet());
+        Document change;
+        int updateFields = Math.min(testOpts.updateFields, testOpts.numFields);
+        if (updateFields == 1) {
+            Document fields = new Document("fld0", (long) getNextVal((int) testOpts.NUMBER_SIZE));
+            change = new Document("$set", fields);
+        } else {
+            TestRecord tr = createNewRecord();
+            tr.internalDoc.remove("_id");
+            change = new Document("$set", tr.internalDoc);
+        }
+        bulkWriter.add(new UpdateManyModel<>(query, change));
+    }
+
+    private void arrayUpdate(List<WriteModel<Document>> bulkWriter) {
+        Document query = new Document("_id", keyInWorkingSet());
+        String element = "arr." + rng.nextInt(testOpts.arraytop) + "." + rng.nextInt(testOpts.arraynext);
+        bulkWriter.add(new UpdateOneModel<>(query, new Document("$inc", new Document(element, 1))));
+    }
+
+    private TestRecord createNewRecord() {
+        int[] arr = new int[2];
+        arr[0] = testOpts.arraytop;
+        arr[1] = testOpts.arraynext;
+        return new TestRecord(testOpts.numFields, testOpts.depth, testOpts.textFieldLen, workerID, sequence++,
+                testOpts.NUMBER_SIZE, arr, testOpts.blobSize, testOpts.locationCodes);
+    }
+
+    public void run() {
+        List<WriteModel<Document>> bulkWriter = new ArrayList<>();
+        logger.debug("Async worker {} started with {} ops in flight", workerID, testOpts.asyncInFlight);
+        testResults.WorkerStarted();
+        try {
+            while (!testResults.StopRequested() && testResults.GetSecondsElapsed() < testOpts.duration) {
+                switch (opScheduler.nextOp()) {
+                    case OP_INSERT:
+                        bulkWriter.add(new InsertOneModel<>(docPool != null
+                                ? docPool.take(workerID, sequence++) : createNewRecord().internalDoc));
+                        break;
+                    case OP_KEYQUERY:
+                        simpleKeyQuery();
+                        break;
+                    case OP_RANGEQUERY:
+                        rangeQuery();
+                        break;
+                    case OP_ARRAYUPDATE:
+                        arrayUpdate(bulkWriter);
+                        break;
+                    default:
+                        updateSingleRecord(bulkWriter);
+                }
+                if (bulkWriter.size() >= testOpts.batchSize) {
+                    flushBulkOps(bulkWriter);
+                    bulkWriter.clear();
+                }
+            }
+            if (!bulkWriter.isEmpty()) {
+                flushBulkOps(bulkWriter);
+            }
+            // Wait for whatever is still outstanding
+            inFlight.acquire(testOpts.asyncInFlight);
+        } catch (InterruptedException e) {
+            logger.warn("Async worker {} interrupted", workerID);
+        } finally {
+            testResults.WorkerFinished();
+        }
+    }
+
+    private static int[] single(OpType op) {
+        int[] ops = new int[OpType.ALL.length];
+        ops[op.ordinal()] = 1;
+        return ops;
+    }
+
+    /**
+     * One bulk write, which like MongoWorker.writeBatch() sends again whatever didn't happen
+     * after a failover. It keeps its in-flight slot until it's done, and each attempt gets a
+     * subscriber of its own as a publisher can't be subscribed to twice.
+     */
+    private class BatchWrite {
+        private final long startNanos = System.nanoTime();
+        private final int[] ops;
+        // Ops that failed and won't be sent again, by OpType.ordinal()
+        private final int[] failed = new int[OpType.ALL.length];
+        private List<WriteModel<Document>> toSend;
+        private int icount = 0;
+        private int attempt = 0;
+        private boolean errorsCounted = false;
+
+        BatchWrite(List<WriteModel<Document>> models) {
+            toSend = models;
+            ops = MongoWorker.countBatch(models);
+            MongoWorker.recordInFlight(testResults, ops, 1);
+        }
+
+        void send() {
+            if (toSend.isEmpty()) {
+                finish();
+                return;
+            }
+            long attemptStart = System.nanoTime();
+            coll.bulkWrite(toSend, bulkOptions).subscribe(new Subscriber<BulkWriteResult>() {
+                public void onSubscribe(Subscription s) {
+                    s.request(Long.MAX_VALUE);
+                }
+
+                public void onNext(BulkWriteResult r) {
+                    icount += r.getInsertedCount();
+                }
+
+                public void onError(Throwable t) {
+                    failed(t);
+                }
+
+                public void onComplete() {
+                    testResults.RecordSuccess(attemptStart);
+                    finish();
+                }
+            });
+        }
+
+        private void failed(Throwable t) {
+            if (t instanceof MongoBulkWriteException) {
+                // The server tells us exactly which ones failed
+                MongoBulkWriteException e = (MongoBulkWriteException) t;
+                icount += e.getWriteResult().getInsertedCount();
+                boolean retrying = false;
+                for (BulkWriteError error : e.getWriteErrors()) {
+                    boolean retryable = ErrorClass.retryable(error.getCode());
+                    if (ErrorCategory.fromErrorCode(error.getCode()) == ErrorCategory.DUPLICATE_KEY) {
+                        // Got there on an earlier attempt
+                        logger.debug("Duplicate key at {} in batch, already inserted", error.getIndex());
+                    } else if (!retryable || !errorsCounted) {
+                        // Ones we send again only count the first time round
+                        OpType op = MongoWorker.opTypeOf(toSend.get(error.getIndex()));
+                        testResults.RecordErrors(op, ErrorClass.ofCode(error.getCode()), 1);
+                        if (!retryable) {
+                            failed[op.ordinal()]++;
+                        }
+                        logger.warn("Write failed with {}: {}", error.getCode(), error.getMessage());
+                    }
+                    retrying |= retryable;
+                }
+                if (e.getWriteConcernError() != null) {
+                    // Written but not acknowledged as far as we asked
+                    countErrors(ErrorClass.WRITE_CONCERN);
+                    logger.warn("Write concern failed: {}", e.getWriteConcernError().getMessage());
+                }
+                toSend = MongoWorker.remainingAfter(toSend, e.getWriteErrors(), testOpts.orderedBatch);
+                if (!toSend.isEmpty()) {
+                    testResults.RecordRetry(String.valueOf(e.getWriteErrors().get(0).getCode()));
+                }
+                if (!retrying) {
+                    send();
+                } else if (testResults.StopRequested()) {
+                    giveUp();
+                } else {
+                    errorsCounted = true;
+                    CompletableFuture.delayedExecutor(backoff(), TimeUnit.MILLISECONDS).execute(this::send);
+                }
+                return;
+            }
+            logger.warn("{}: {}", t.getClass().getSimpleName(), t.getMessage());
+            if (testOpts.debug)
+                t.printStackTrace();
+            countErrors(ErrorClass.of(t));
+            if (!(t instanceof MongoException) || testResults.StopRequested()) {
+                giveUp();
+                return;
+            }
+            // Nothing back, some of it may have happened - possibly a failover
+            testResults.RecordRetry(MongoWorker.retryReason((MongoException) t));
+            // Don't hammer a cluster that's electing, the timer only starts the lookup so nothing blocks
+            CompletableFuture.delayedExecutor(backoff(), TimeUnit.MILLISECONDS).execute(this::resendMissing);
+        }
+
+        private long backoff() {
+            return Math.min(10L << Math.min(attempt++, 10), 1000);
+        }
+
+        /**
+         * As MongoWorker.dropExistingInserts(), look up which inserts made it and send the rest
+         */
+        private void resendMissing() {
+            List<Document> ids = MongoWorker.insertIds(toSend, workerID);
+            if (ids.isEmpty()) {
+                send();
+                return;
+            }
+            Set<Integer> existing = new HashSet<>();
+            coll.find(new Document("_id", new Document("$in", ids))).projection(include("_id"))
+                    .subscribe(new Subscriber<Document>() {
+                        public void onSubscribe(Subscription s) {
+                            s.request(Long.MAX_VALUE);
+                        }
+
+                        public void onNext(Document d) {
+                            existing.add(((Document) d.get("_id")).getInteger("i"));
+                        }
+
+                        public void onError(Throwable t) {
+                            // Still down - send it all and sort it out next time
+                            send();
+                        }
+
+                        public void onComplete() {
+                            toSend = MongoWorker.withoutInserts(toSend, existing);
+                            send();
+                        }
+                    });
+        }
+
+        // However many times it goes round, a failed batch only counts as errors once
+        private void countErrors(ErrorClass errorClass) {
+            if (!errorsCounted) {
+                MongoWorker.recordErrors(testResults, MongoWorker.countBatch(toSend), errorClass);
+                errorsCounted = true;
+            }
+        }
+
+        private void giveUp() {
+            int[] unsent = MongoWorker.countBatch(toSend);
+            for (OpType o : OpType.ALL) {
+                failed[o.ordinal()] += unsent[o.ordinal()];
+            }
+            toSend = new ArrayList<>();
+            finish();
+        }
+
+        private void finish() {
+            long taken = (System.nanoTime() - startNanos) / 1000;
+            int updates = ops[OpType.UPDATES.ordinal()] - failed[OpType.UPDATES.ordinal()];
+            int arrayUpdates = ops[OpType.ARRAYUPDATES.ordinal()] - failed[OpType.ARRAYUPDATES.ordinal()];
+            // If the bulk op is slow - ALL those ops were slow
+            latencies.record(OpType.INSERTS, taken, icount);
+            latencies.record(OpType.UPDATES, taken, updates);
+            latencies.record(OpType.ARRAYUPDATES, taken, arrayUpdates);
+            testResults.RecordOpsDone(OpType.INSERTS, icount);
+            testResults.RecordOpsDone(OpType.UPDATES, updates);
+            testResults.RecordOpsDone(OpType.ARRAYUPDATES, arrayUpdates);
+            MongoWorker.recordInFlight(testResults, ops, -1);
+            inFlight.release();
+        }
+    }
+
+    /**
+     * Subscribes to a single op, records it when it finishes and frees its in-flight slot
+     */
+    private abstract class OpSubscriber<T> implements Subscriber<T> {
+        private final long startNanos = System.nanoTime();
+        // How many of each op type this is, see MongoWorker.countBatch()
+        private final int[] ops;
+        int items = 0;
+
+        OpSubscriber(int[] ops) {
+            this.ops = ops;
+            MongoWorker.recordInFlight(testResults, ops, 1);
+        }
+
+        OpSubscriber(OpType op) {
+            this(single(op));
+        }
+
+        public void onSubscribe(Subscription s) {
+            s.request(Long.MAX_VALUE);
+        }
+
+        public void onNext(T t) {
+            items++;
+            item(t);
+        }
+
+        public void onError(Throwable t) {
+            logger.warn("{}: {}", t.getClass().getSimpleName(), t.getMessage());
+            if (testOpts.debug)
+                t.printStackTrace();
+            MongoWorker.recordErrors(testResults, ops, ErrorClass.of(t));
+            MongoWorker.recordInFlight(testResults, ops, -1);
+            inFlight.release();
+        }
+
+        public void onComplete() {
+            testResults.RecordSuccess(startNanos);
+            completed(System.nanoTime() - startNanos);
+            MongoWorker.recordInFlight(testResults, ops, -1);
+            inFlight.release();
+        }
+
+        void item(T t) {
+        }
+
+        abstract void completed(long takenNanos);
+    }
+}
@@ -0,0 +1,70 @@
+package com.johnlpage.pocdriver;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets one worker have up to depth bulk writes on the wire while it builds the next.
+ * The writes run on the pipeline's own threads, submit() blocks once depth are in flight.
+ * With a depth of 1 writes run on the caller's thread exactly as if it called them itself.
+ */
+public class BatchPipeline {
+    private final int depth;
+    private final Semaphore slots;
+    private final ExecutorService pool;
+
+    BatchPipeline(int depth) {
+        this.depth = Math.max(depth, 1);
+        slots = new Semaphore(this.depth);
+        pool = this.depth > 1 ? Executors.newFixedThreadPool(this.depth, r -> {
+            Thread t = new Thread(r, "batch-pipeline");
+            t.setDaemon(true);
+            return t;
+        }) : null;
+    }
+
+    int depth() {
+        return depth;
+    }
+
+    /**
+     * The write must deal with its own errors, anything it throws is lost
+     */
+    void submit(Runnable write) throws InterruptedException {
+        if (pool == null) {
+            write.run();
+            return;
+        }
+        slots.acquire();
+        try {
+            pool.execute(() -> {
+                try {
+                    write.run();
+                } finally {
+                    slots.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            slots.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Wait for everything submitted so far to finish
+     */
+    void drain() throws InterruptedException {
+        slots.acquire(depth);
+        slots.release(depth);
+    }
+
+    void close() throws InterruptedException {
+        if (pool != null) {
+            drain();
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.johnlpage.pocdriver;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * --loaddocs - inserts this worker's share of the documents as fast as it can, then stops.
+ * <p>
+ * Worker w owns _ids {w, 0} up to {w, share}. It starts from the highest it already has so
+ * a stopped load can be run again to finish. Batches are unordered and several can be in
+ * flight, so the last few before a stop may have holes - we go back over those and the
+ * duplicate key errors for what did get there are ignored.
+ */
+public class BulkLoader implements Runnable {
+    private static final BulkWriteOptions UNORDERED = new BulkWriteOptions().ordered(false);
+
+    private final POCTestOptions testOpts;
+    private final POCTestResults testResults;
+    private final MongoCollection<Document> coll;
+    private final int workerID;
+    private final int share;
+    private final DocumentPool docPool;
+    private final LatencyRecorder latencies;
+    private RawRecordTemplate rawTemplate;
+    private int sequence;
+    Logger logger;
+
+    BulkLoader(MongoClient c, POCTestOptions t, POCTestResults r, int id, int share, DocumentPool pool) {
+        logger = LoggerFactory.getLogger(BulkLoader.class);
+        testOpts = t;
+        testResults = r;
+        workerID = id;
+        this.share = share;
+        docPool = pool;
+        MongoCollection<Document> base = c.getDatabase(t.databaseName).getCollection(t.collectionName);
+        coll = t.consistency.writeConcern() != null ? base.withWriteConcern(t.consistency.writeConcern()) : base;
+        // Written to from the pipeline's threads
+        latencies = r.newLatencyRecorder(true);
+        if (t.rawBson) {
+            int[] arr = new int[]{t.arraytop, t.arraynext};
+            TestRecord tr = new TestRecord(t.numFields, t.depth, t.textFieldLen, id, 0,
+                    t.NUMBER_SIZE, arr, t.blobSize, t.locationCodes);
+            rawTemplate = new RawRecordTemplate(tr.toBson(), t.NUMBER_SIZE, new Random().nextLong());
+        }
+        int highest = MongoWorker.findHighestID(coll, id);
+        sequence = Math.max(0, Math.min(highest, share) - t.batchesInFlight * t.batchSize);
+        if (highest > 0) {
+            logger.info("Loader {} resuming from {} of {}", id, sequence, share);
+        }
+    }
+
+    /**
+     * @return how many of total documents worker number n of threads loads
+     */
+    static int share(long total, int threads, int n) {
+        return (int) (total / threads + (n < total % threads ? 1 : 0));
+    }
+
+    public void run() {
+        testResults.WorkerStarted();
+        BatchPipeline pipeline = new BatchPipeline(testOpts.batchesInFlight);
+        try {
+            while (sequence < share && !testResults.StopRequested()
+                    && testResults.GetSecondsElapsed() < testOpts.duration) {
+                int size = Math.min(testOpts.batchSize, share - sequence);
+                if (rawTemplate != null) {
+                    // Sent as the bytes they already are
+                    List<WriteModel<RawBsonDocument>> batch = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        batch.add(new InsertOneModel<>(rawTemplate.newRecord(workerID, sequence++)));
+                    }
+                    pipeline.submit(() -> write(coll.withDocumentClass(RawBsonDocument.class), batch));
+                } else {
+                    List<WriteModel<Document>> batch = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        batch.add(newInsert(sequence++));
+                    }
+                    pipeline.submit(() -> write(coll, batch));
+                }
+            }
+            pipeline.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.warn("Loader {}: {}", workerID, e.getMessage());
+            if (testOpts.debug)
+                e.printStackTrace();
+        } finally {
+            testResults.WorkerFinished();
+        }
+    }
+
+    private WriteModel<Document> newInsert(int i) throws InterruptedException {
+        Document doc;
+        if (docPool != null) {
+            doc = docPool.take(workerID, i);
+        } else {
+            int[] arr = new int[]{testOpts.arraytop, testOpts.arraynext};
+            doc = new TestRecord(testOpts.numFields, testOpts.depth, testOpts.textFieldLen, workerID, i,
+                    testOpts.NUMBER_SIZE, arr, testOpts.blobSize, testOpts.locationCodes).internalDoc;
+        }
+        return new InsertOneModel<>(doc);
+    }
+
+    private <T> void write(MongoCollection<T> target, List<WriteModel<T>> batch) {
+        long start = System.nanoTime();
+        int inserted = 0;
+        int size = batch.size();
+        // Resent until it gets there, but only counted as errors the first time
+        boolean errorsCounted = false;
+        testResults.RecordOpsInFlight(OpType.INSERTS, size);
+        try {
+            while (!batch.isEmpty()) {
+                try {
+                    long attemptStart = System.nanoTime();
+                    inserted += target.bulkWrite(batch, UNORDERED).getInsertedCount();
+                    testResults.RecordSuccess(attemptStart);
+                    break;
+                } catch (MongoBulkWriteException e) {
+                    // Unordered so everything else in the batch was tried
+                    inserted += e.getWriteResult().getInsertedCount();
+                    int failed = 0;
+                    for (BulkWriteError error : e.getWriteErrors()) {
+                        if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY
+                                && (!ErrorClass.retryable(error.getCode()) || !errorsCounted)) {
+                            testResults.RecordErrors(OpType.INSERTS, ErrorClass.ofCode(error.getCode()), 1);
+                            failed++;
+                        }
+                    }
+                    if (failed > 0) {
+                        logger.warn("Loader {}: {} inserts failed: {}", workerID, failed, e.getMessage());
+                    }
+                    // Whatever the cluster couldn't take right then goes again
+                    batch = MongoWorker.remainingAfter(batch, e.getWriteErrors(), false);
+                    if (batch.isEmpty() || testResults.StopRequested()) {
+                        break;
+                    }
+                    errorsCounted = true;
+                    testResults.RecordRetry(String.valueOf(e.getWriteErrors().get(0).getCode()));
+                    Thread.sleep(1000);
+                } catch (MongoException e) {
+                    // Failover or network - the whole batch goes again, dupes and all
+                    if (!errorsCounted) {
+                        testResults.RecordErrors(OpType.INSERTS, e, batch.size());
+                        errorsCounted = true;
+                    }
+                    testResults.RecordRetry(MongoWorker.retryReason(e));
+                    logger.warn("Loader {}: {}, retrying", workerID, e.getMessage());
+                    if (testResults.StopRequested()) {
+                        break;
+                    }
+                    Thread.sleep(1000);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            testResults.RecordOpsInFlight(OpType.INSERTS, -size);
+        }
+        latencies.record(OpType.INSERTS, (System.nanoTime() - start) / 1000, inserted);
+        testResults.RecordOpsDone(OpType.INSERTS, inserted);
+    }
+}
@@ -0,0 +1,97 @@
+package com.johnlpage.pocdriver;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Builds insert documents ahead of time on background threads so the workers
+ * don't spend their time in TestRecord. Workers take a document and only set the _id.
+ * <p>
+ * If the workers keep finding it empty then generating documents is what limits
+ * the insert rate, not the server - the reporter shows both.
+ */
+public class DocumentPool {
+    private final POCTestOptions testOpts;
+    private final ArrayBlockingQueue<Document> ring;
+    private final Thread[] generators;
+    private final LongAdder emptyWaits = new LongAdder();
+    private final Logger logger;
+
+    DocumentPool(POCTestOptions testOpts) {
+        this.testOpts = testOpts;
+        logger = LoggerFactory.getLogger(DocumentPool.class);
+        ring = new ArrayBlockingQueue<>(testOpts.docPoolSize);
+        generators = new Thread[testOpts.docPoolGenerators];
+        for (int i = 0; i < generators.length; i++) {
+            generators[i] = new Thread(this::generate, "docpool-" + i);
+            generators[i].setDaemon(true);
+        }
+    }
+
+    void start() {
+        logger.info("Starting {} document generators for a pool of {}", generators.length, ring.remainingCapacity());
+        for (Thread t : generators) {
+            t.start();
+        }
+    }
+
+    /**
+     * Stops the generators and waits for them to finish the document they're on
+     */
+    void stop() {
+        for (Thread t : generators) {
+            t.interrupt();
+        }
+        try {
+            for (Thread t : generators) {
+                t.join(1000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void generate() {
+        int[] arr = new int[]{testOpts.arraytop, testOpts.arraynext};
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                // _id is a placeholder, the worker that takes it fills that in
+                TestRecord tr = new TestRecord(testOpts.numFields, testOpts.depth, testOpts.textFieldLen, 0, 0,
+                        testOpts.NUMBER_SIZE, arr, testOpts.blobSize, testOpts.locationCodes);
+                ring.put(tr.internalDoc);
+            }
+        } catch (InterruptedException e) {
+            logger.debug("Document generator stopped");
+        }
+    }
+
+    /**
+     * @return a new document with its _id set, waits if the generators haven't kept up
+     */
+    Document take(int workerID, int sequence) throws InterruptedException {
+        Document doc = ring.poll();
+        if (doc == null) {
+            emptyWaits.increment();
+            doc = ring.take();
+        }
+        // Replacing the value keeps _id as the first field
+        doc.put("_id", new Document("w", workerID).append("i", sequence));
+        return doc;
+    }
+
+    int occupancy() {
+        return ring.size();
+    }
+
+    int capacity() {
+        return testOpts.docPoolSize;
+    }
+
+    long emptyWaits() {
+        return emptyWaits.sum();
+    }
+}
@@ -0,0 +1,193 @@
+package com.johnlpage.pocdriver;
+
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.*;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Listens to the driver so we can tell server time from time spent waiting for a connection.
+ * Events arrive on whichever thread ran the command, so everything here is a
+ * multi-writer recorder or an atomic. The reporter samples it once per interval.
+ */
+public class DriverMetrics implements CommandListener, ConnectionPoolListener {
+    // The commands we do, anything else (hello, count, ...) goes in other
+    static final String[] COMMANDS = {"insert", "update", "delete", "find", "getMore", "findAndModify", "other"};
+    private static final int OTHER = COMMANDS.length - 1;
+
+    private final Recorder[] roundTrips = new Recorder[COMMANDS.length];
+    private final Histogram[] roundTripSpares = new Histogram[COMMANDS.length];
+    private final Recorder checkoutWait = newRecorder();
+    private Histogram checkoutWaitSpare;
+    private final LongAdder commandFailures = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    private final LongAdder checkOutFailures = new LongAdder();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicInteger peakInUse = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    // One pool per server
+    private final ConcurrentHashMap<ServerId, Integer> poolSizes = new ConcurrentHashMap<>();
+    // Totals at the last sample, reporter only
+    private long lastCommandFailures, lastCreated, lastClosed, lastCheckOutFailures;
+
+    DriverMetrics() {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            roundTrips[i] = newRecorder();
+        }
+    }
+
+    private static Recorder newRecorder() {
+        return new Recorder(LatencyRecorder.LOWEST_MICROS, LatencyRecorder.HIGHEST_MICROS,
+                LatencyRecorder.SIGNIFICANT_DIGITS);
+    }
+
+    private static int commandIndex(String name) {
+        switch (name) {
+            case "insert":
+                return 0;
+            case "update":
+                return 1;
+            case "delete":
+                return 2;
+            case "find":
+                return 3;
+            case "getMore":
+                return 4;
+            case "findAndModify":
+                return 5;
+            default:
+                return OTHER;
+        }
+    }
+
+    private static void record(Recorder recorder, long micros) {
+        recorder.recordValue(Math.min(Math.max(micros, 0), LatencyRecorder.HIGHEST_MICROS));
+    }
+
+    @Override
+    public void commandSucceeded(CommandSucceededEvent event) {
+        record(roundTrips[commandIndex(event.getCommandName())], event.getElapsedTime(TimeUnit.MICROSECONDS));
+    }
+
+    @Override
+    public void commandFailed(CommandFailedEvent event) {
+        commandFailures.increment();
+        record(roundTrips[commandIndex(event.getCommandName())], event.getElapsedTime(TimeUnit.MICROSECONDS));
+    }
+
+    @Override
+    public void connectionPoolCreated(ConnectionPoolCreatedEvent event) {
+        poolSizes.put(event.getServerId(), event.getSettings().getMaxSize());
+    }
+
+    @Override
+    public void connectionPoolClosed(ConnectionPoolClosedEvent event) {
+        poolSizes.remove(event.getServerId());
+    }
+
+    @Override
+    public void connectionCreated(ConnectionCreatedEvent event) {
+        created.increment();
+    }
+
+    @Override
+    public void connectionClosed(ConnectionClosedEvent event) {
+        closed.increment();
+    }
+
+    @Override
+    public void connectionCheckOutStarted(ConnectionCheckOutStartedEvent event) {
+        waiting.incrementAndGet();
+    }
+
+    @Override
+    public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+        waiting.decrementAndGet();
+        record(checkoutWait, event.getElapsedTime(TimeUnit.MICROSECONDS));
+        int now = inUse.incrementAndGet();
+        peakInUse.accumulateAndGet(now, Math::max);
+    }
+
+    @Override
+    public void connectionCheckOutFailed(ConnectionCheckOutFailedEvent event) {
+        waiting.decrementAndGet();
+        checkOutFailures.increment();
+        record(checkoutWait, event.getElapsedTime(TimeUnit.MICROSECONDS));
+    }
+
+    @Override
+    public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+        inUse.decrementAndGet();
+    }
+
+    /**
+     * Server round trip times since the last call - reporter only
+     */
+    Histogram sampleRoundTrips(int command) {
+        roundTripSpares[command] = roundTrips[command].getIntervalHistogram(roundTripSpares[command]);
+        return roundTripSpares[command];
+    }
+
+    // Time to get a connection from the pool since the last call - reporter only
+    Histogram sampleCheckoutWait() {
+        checkoutWaitSpare = checkoutWait.getIntervalHistogram(checkoutWaitSpare);
+        return checkoutWaitSpare;
+    }
+
+    // The sample* counts are since the last call - reporter only
+
+    long sampleCommandFailures() {
+        long now = commandFailures.sum();
+        long rval = now - lastCommandFailures;
+        lastCommandFailures = now;
+        return rval;
+    }
+
+    long sampleCreated() {
+        long now = created.sum();
+        long rval = now - lastCreated;
+        lastCreated = now;
+        return rval;
+    }
+
+    long sampleClosed() {
+        long now = closed.sum();
+        long rval = now - lastClosed;
+        lastClosed = now;
+        return rval;
+    }
+
+    long sampleCheckOutFailures() {
+        long now = checkOutFailures.sum();
+        long rval = now - lastCheckOutFailures;
+        lastCheckOutFailures = now;
+        return rval;
+    }
+
+    // Most connections in use at once since the last call
+    int samplePeakInUse() {
+        return peakInUse.getAndSet(inUse.get());
+    }
+
+    int inUse() {
+        return inUse.get();
+    }
+
+    int waiting() {
+        return waiting.get();
+    }
+
+    int maxPoolSize() {
+        int total = 0;
+        for (int size : poolSizes.values()) {
+            total += size;
+        }
+        return total;
+    }
+}
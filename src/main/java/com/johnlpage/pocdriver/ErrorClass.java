@@ -0,0 +1,103 @@
+package com.johnlpage.pocdriver;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoNodeIsRecoveringException;
+import com.mongodb.MongoNotPrimaryException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoSocketReadTimeoutException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.MongoWriteConcernException;
+
+/**
+ * What kind of failure an error was, so a failover shows up as not primary and network
+ * errors rather than one error count. All but OTHER mean the cluster couldn't take the op
+ * right then, the rest are a problem with the op itself.
+ */
+public enum ErrorClass {
+    TIMEOUT("timeout"),
+    NOT_PRIMARY("not primary"),
+    NETWORK("network"),
+    WRITE_CONCERN("write concern"),
+    OTHER("other");
+
+    static final ErrorClass[] ALL = values();
+
+    private final String label;
+
+    ErrorClass(String label) {
+        this.label = label;
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+
+    boolean unavailable() {
+        return this != OTHER;
+    }
+
+    static ErrorClass of(Throwable t) {
+        if (t instanceof MongoWriteConcernException) {
+            return WRITE_CONCERN;
+        }
+        if (t instanceof MongoBulkWriteException && ((MongoBulkWriteException) t).getWriteConcernError() != null) {
+            return WRITE_CONCERN;
+        }
+        // Read timeouts are socket exceptions too
+        if (t instanceof MongoTimeoutException || t instanceof MongoSocketReadTimeoutException) {
+            return TIMEOUT;
+        }
+        if (t instanceof MongoSocketException) {
+            return NETWORK;
+        }
+        if (t instanceof MongoNotPrimaryException || t instanceof MongoNodeIsRecoveringException) {
+            return NOT_PRIMARY;
+        }
+        if (t instanceof MongoException) {
+            return ofCode(((MongoException) t).getCode());
+        }
+        return OTHER;
+    }
+
+    /**
+     * Whether a write that failed with this code could work if sent again - the cluster
+     * wasn't able to take it, rather than something like a duplicate key or failed validation
+     */
+    static boolean retryable(int code) {
+        // UnsatisfiableWriteConcern is the same however often we ask
+        return code != 100 && ofCode(code).unavailable();
+    }
+
+    /**
+     * From a server error code, as found on a bulk write error
+     */
+    static ErrorClass ofCode(int code) {
+        switch (code) {
+            case 50:    // MaxTimeMSExpired
+            case 89:    // NetworkTimeout
+            case 202:   // NetworkInterfaceExceededTimeLimit
+            case 262:   // ExceededTimeLimit
+                return TIMEOUT;
+            case 91:    // ShutdownInProgress
+            case 189:   // PrimarySteppedDown
+            case 10058: // LegacyNotPrimary
+            case 10107: // NotWritablePrimary
+            case 11600: // InterruptedAtShutdown
+            case 11602: // InterruptedDueToReplStateChange
+            case 13435: // NotPrimaryNoSecondaryOk
+            case 13436: // NotPrimaryOrSecondary
+                return NOT_PRIMARY;
+            case 6:     // HostUnreachable
+            case 7:     // HostNotFound
+            case 9001:  // SocketException
+                return NETWORK;
+            case 64:    // WriteConcernFailed
+            case 100:   // UnsatisfiableWriteConcern
+                return WRITE_CONCERN;
+            default:
+                return OTHER;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.johnlpage.pocdriver;
+
+import org.apache.commons.math3.distribution.ZipfDistribution;
+
+import java.util.Random;
+
+/**
+ * How a worker picks which record to touch next - zipfian with -z, uniformly random
+ * with --opsratio, otherwise from the clock, which is what POCDriver has always done.
+ */
+public class KeyDistribution {
+    private final ZipfDistribution zipf;
+    private final boolean uniform;
+    private final Random rng;
+
+    KeyDistribution(POCTestOptions testOpts, Random rng) {
+        this.rng = rng;
+        zipf = testOpts.zipfian ? new ZipfDistribution(testOpts.zipfsize, 0.99) : null;
+        uniform = testOpts.opsratio;
+    }
+
+    /**
+     * @return a value from 0 up to mult, or up to the -z size if zipfian
+     */
+    int next(int mult) {
+        if (zipf != null) {
+            return zipf.sample();
+        }
+        if (uniform) {
+            return (int) Math.abs(Math.floor(rng.nextDouble() * mult));
+        }
+        // Which record we pick depends on the time, op selection has
+        // its own scheduler now so this is only used for choosing keys
+        long now = System.currentTimeMillis();
+        if (mult == 0) {
+            mult = 1;
+        }
+        return (int) (now % mult);
+    }
+}
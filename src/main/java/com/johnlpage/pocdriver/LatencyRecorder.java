@@ -0,0 +1,114 @@
+package com.johnlpage.pocdriver;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.HdrHistogram.SingleWriterRecorder;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Per-worker latency recorder, one HdrHistogram recorder per op type.
+ * Only the owning worker writes to it, the reporter swaps out the interval
+ * histograms without ever blocking that worker.
+ * <p>
+ * When running open loop there is a second set of recorders holding latency
+ * measured from when the op should have started (coordinated omission corrected).
+ * Recorders are only created for op types that get used as each one is a few hundred KB.
+ * <p>
+ * With thousands of virtual thread workers that is far too much per worker, so they share
+ * a handful of multi-writer recorders instead - still wait free, just not contention free.
+ */
+public class LatencyRecorder {
+    // Everything is recorded in microseconds, anything over an hour is clamped
+    static final long LOWEST_MICROS = 1;
+    static final long HIGHEST_MICROS = 3_600_000_000L;
+    static final int SIGNIFICANT_DIGITS = 3;
+
+    private final int numOps;
+    private final boolean shared;
+    // Uncorrected recorders first then the corrected ones, only one of these is used
+    private final AtomicReferenceArray<SingleWriterRecorder> recorders;
+    private final AtomicReferenceArray<Recorder> sharedRecorders;
+    private final Histogram[] spares;
+
+    /**
+     * @param shared true if more than one thread will be recording
+     */
+    LatencyRecorder(boolean shared) {
+        this.shared = shared;
+        numOps = OpType.ALL.length;
+        recorders = new AtomicReferenceArray<>(numOps * 2);
+        sharedRecorders = new AtomicReferenceArray<>(numOps * 2);
+        spares = new Histogram[numOps * 2];
+    }
+
+    static Histogram newHistogram() {
+        return new Histogram(LOWEST_MICROS, HIGHEST_MICROS, SIGNIFICANT_DIGITS);
+    }
+
+    void record(OpType opType, long micros, int count) {
+        record(opType.ordinal(), micros, count);
+    }
+
+    /**
+     * Record both the service time and the time from the intended start of the op
+     */
+    void record(OpType opType, long micros, long correctedMicros, int count) {
+        record(opType.ordinal(), micros, count);
+        record(numOps + opType.ordinal(), correctedMicros, count);
+    }
+
+    private void record(int slot, long micros, int count) {
+        if (count <= 0) {
+            return;
+        }
+        long value = Math.min(Math.max(micros, 0), HIGHEST_MICROS);
+        if (shared) {
+            Recorder recorder = sharedRecorders.get(slot);
+            if (recorder == null) {
+                sharedRecorders.compareAndSet(slot, null,
+                        new Recorder(LOWEST_MICROS, HIGHEST_MICROS, SIGNIFICANT_DIGITS));
+                recorder = sharedRecorders.get(slot);
+            }
+            recorder.recordValueWithCount(value, count);
+        } else {
+            SingleWriterRecorder recorder = recorders.get(slot);
+            if (recorder == null) {
+                recorder = new SingleWriterRecorder(LOWEST_MICROS, HIGHEST_MICROS, SIGNIFICANT_DIGITS);
+                recorders.set(slot, recorder);
+            }
+            recorder.recordValueWithCount(value, count);
+        }
+    }
+
+    /**
+     * Add everything recorded since the last call into target - reporter thread only.
+     * The histogram handed back by the recorder is kept to be recycled next time.
+     */
+    void drainInto(OpType op, Histogram target) {
+        drainSlot(op.ordinal(), target);
+    }
+
+    void drainCorrectedInto(OpType op, Histogram target) {
+        drainSlot(numOps + op.ordinal(), target);
+    }
+
+    private void drainSlot(int slot, Histogram target) {
+        Histogram interval;
+        if (shared) {
+            Recorder recorder = sharedRecorders.get(slot);
+            if (recorder == null) {
+                return;
+            }
+            interval = recorder.getIntervalHistogram(spares[slot]);
+        } else {
+            SingleWriterRecorder recorder = recorders.get(slot);
+            if (recorder == null) {
+                return;
+            }
+            interval = recorder.getIntervalHistogram(spares[slot]);
+        }
+        target.add(interval);
+        spares[slot] = interval;
+    }
+}
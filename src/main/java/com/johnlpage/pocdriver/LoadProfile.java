@@ -0,0 +1,268 @@
+package com.johnlpage.pocdriver;
+
+import org.apache.commons.cli.ParseException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Target rate, and optionally op mix, over time - from --profile.
+ * <p>
+ * A profile is a list of segments, one per line in a file or separated by ';' inline:
+ * <pre>
+ *   ramp 0 50000 10m
+ *   hold 50000 20m
+ *   spike 5x 30s mix=i:10,k:90
+ *   sine 10000 50000 1h 4h
+ * </pre>
+ * A rate ending in x is a multiple of the rate the previous segment finished at, not counting
+ * spikes, so 'hold 1x' after a spike goes back to where it was. Times are
+ * seconds unless they end in m or h. Segments without a mix use the command line ratios.
+ * After the last segment its final rate holds until the end of the test.
+ */
+public class LoadProfile {
+    // Same order as the weights MongoWorker gives its OpScheduler
+    static final String[] MIX_KEYS = {"i", "k", "r", "u", "D", "rangedeletes", "g"};
+    // RateLimiter can't do 0, one op a second is near enough for "idle"
+    static final double MIN_RATE = 1;
+
+    private final List<Segment> segments = new ArrayList<>();
+    private double totalSeconds = 0;
+    // Published by apply() for the workers, null for the command line mix
+    private volatile int[] currentMix;
+    private int appliedRate = 0;
+
+    static class Segment {
+        final String kind;
+        final double start;
+        final double from;
+        final double to;
+        final double period;
+        final double seconds;
+        final int[] mix;
+
+        Segment(String kind, double start, double from, double to, double period, double seconds, int[] mix) {
+            this.kind = kind;
+            this.start = start;
+            this.from = from;
+            this.to = to;
+            this.period = period;
+            this.seconds = seconds;
+            this.mix = mix;
+        }
+
+        double rateAt(double t) {
+            switch (kind) {
+                case "ramp":
+                    return from + (to - from) * t / seconds;
+                case "sine":
+                    // Starts at the low point, like traffic at night
+                    return from + (to - from) * (1 - Math.cos(2 * Math.PI * t / period)) / 2;
+                default:
+                    return from;
+            }
+        }
+
+        double endRate() {
+            return rateAt(seconds);
+        }
+    }
+
+    /**
+     * @param arg a file name, or the profile itself
+     */
+    static LoadProfile load(String arg) throws ParseException {
+        Path path = Paths.get(arg);
+        if (!arg.contains(";") && Files.isRegularFile(path)) {
+            try {
+                return parse(String.join("\n", Files.readAllLines(path)));
+            } catch (IOException e) {
+                throw new ParseException("Cannot read profile " + arg + ": " + e.getMessage());
+            }
+        }
+        return parse(arg);
+    }
+
+    static LoadProfile parse(String spec) throws ParseException {
+        LoadProfile profile = new LoadProfile();
+        double lastRate = 0;
+        for (String line : spec.split("[;\n]")) {
+            int hash = line.indexOf('#');
+            if (hash >= 0) {
+                line = line.substring(0, hash);
+            }
+            String[] words = line.trim().split("\\s+");
+            if (words[0].isEmpty()) {
+                continue;
+            }
+            int[] mix = null;
+            int n = words.length;
+            if (words[n - 1].startsWith("mix=")) {
+                mix = parseMix(words[n - 1].substring(4));
+                n--;
+            }
+            String kind = words[0].toLowerCase();
+            Segment s;
+            double start = profile.totalSeconds;
+            if (kind.equals("ramp") && n == 4) {
+                s = new Segment(kind, start, parseRate(words[1], lastRate), parseRate(words[2], lastRate),
+                        0, parseSeconds(words[3]), mix);
+            } else if ((kind.equals("hold") || kind.equals("spike")) && n == 3) {
+                double rate = parseRate(words[1], lastRate);
+                s = new Segment(kind, start, rate, rate, 0, parseSeconds(words[2]), mix);
+            } else if (kind.equals("sine") && n == 5) {
+                s = new Segment(kind, start, parseRate(words[1], lastRate), parseRate(words[2], lastRate),
+                        parseSeconds(words[3]), parseSeconds(words[4]), mix);
+            } else {
+                throw new ParseException("Bad profile segment '" + line.trim()
+                        + "' - expected ramp <from> <to> <time>, hold|spike <rate> <time> or sine <low> <high> <period> <time>");
+            }
+            profile.segments.add(s);
+            profile.totalSeconds += s.seconds;
+            if (!kind.equals("spike")) {
+                lastRate = s.endRate();
+            }
+        }
+        if (profile.segments.isEmpty()) {
+            throw new ParseException("Profile has no segments");
+        }
+        return profile;
+    }
+
+    private static double parseRate(String word, double lastRate) throws ParseException {
+        try {
+            if (word.endsWith("x")) {
+                return lastRate * Double.parseDouble(word.substring(0, word.length() - 1));
+            }
+            return Double.parseDouble(word);
+        } catch (NumberFormatException e) {
+            throw new ParseException("Bad rate in profile: " + word);
+        }
+    }
+
+    private static double parseSeconds(String word) throws ParseException {
+        double scale = 1;
+        String number = word;
+        if (word.endsWith("h")) {
+            scale = 3600;
+        } else if (word.endsWith("m")) {
+            scale = 60;
+        }
+        if (word.endsWith("h") || word.endsWith("m") || word.endsWith("s")) {
+            number = word.substring(0, word.length() - 1);
+        }
+        double seconds;
+        try {
+            seconds = Double.parseDouble(number) * scale;
+        } catch (NumberFormatException e) {
+            throw new ParseException("Bad time in profile: " + word);
+        }
+        if (seconds <= 0) {
+            throw new ParseException("Profile times must be more than 0: " + word);
+        }
+        return seconds;
+    }
+
+    private static int[] parseMix(String mix) throws ParseException {
+        int[] weights = new int[MIX_KEYS.length];
+        for (String part : mix.split(",")) {
+            String[] kv = part.split(":");
+            int k = kv.length == 2 ? mixIndex(kv[0]) : -1;
+            if (k < 0) {
+                throw new ParseException("Bad mix in profile: " + part + " - use op:weight with ops from i,k,r,u,D,rangedeletes,g");
+            }
+            try {
+                weights[k] = Integer.parseInt(kv[1]);
+            } catch (NumberFormatException e) {
+                throw new ParseException("Bad mix in profile: " + part);
+            }
+        }
+        return weights;
+    }
+
+    static int mixIndex(String key) {
+        for (int i = 0; i < MIX_KEYS.length; i++) {
+            if (MIX_KEYS[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    double totalSeconds() {
+        return totalSeconds;
+    }
+
+    private Segment segmentAt(double seconds) {
+        for (Segment s : segments) {
+            if (seconds < s.start + s.seconds) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    double rateAt(double seconds) {
+        Segment s = segmentAt(seconds);
+        if (s == null) {
+            return Math.max(segments.get(segments.size() - 1).endRate(), MIN_RATE);
+        }
+        return Math.max(s.rateAt(seconds - s.start), MIN_RATE);
+    }
+
+    /**
+     * @return the op weights at this point, or null for the command line mix
+     */
+    int[] mixAt(double seconds) {
+        Segment s = segmentAt(seconds);
+        return s == null ? segments.get(segments.size() - 1).mix : s.mix;
+    }
+
+    /**
+     * True if any segment's mix has some of this op, so it needs the same checks as the option
+     */
+    boolean uses(String key) {
+        int k = mixIndex(key);
+        for (Segment s : segments) {
+            if (s.mix != null && s.mix[k] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean hasMix() {
+        for (Segment s : segments) {
+            if (s.mix != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The workers read this every op, it only changes between segments
+     */
+    int[] currentMix() {
+        return currentMix;
+    }
+
+    /**
+     * Move the rate limiter and op mix to where the profile says they should be now.
+     * Run every 100ms or so from one thread.
+     */
+    void apply(POCTestOptions testOpts, POCTestResults testResults) {
+        double now = testResults.GetExactSecondsElapsed();
+        int rate = (int) Math.round(rateAt(now));
+        if (rate != appliedRate) {
+            appliedRate = rate;
+            testOpts.opsPerSecond = rate;
+            testResults.GetRateLimiter().adjustRate(rate);
+        }
+        currentMix = mixAt(now);
+    }
+}
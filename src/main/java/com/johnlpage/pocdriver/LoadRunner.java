@@ -1,6 +1,8 @@
 package com.johnlpage.pocdriver;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
 import com.mongodb.client.*;
 import com.mongodb.client.model.IndexOptions;
 import com.mongodb.client.model.UpdateOptions;
@@ -9,10 +11,14 @@ import org.bson.Document;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -24,13 +30,23 @@ public class LoadRunner {
 
     Logger logger;
     private MongoClient mongoClient;
+    private DriverMetrics driverMetrics;
+    private final TopologyMonitor topologyMonitor = new TopologyMonitor();
+    // Where each worker left off, kept between the phases of a scenario
+    private final Map<String, int[]> workerPositions = new ConcurrentHashMap<>();
 
     LoadRunner(POCTestOptions testOpts) {
         logger = LoggerFactory.getLogger(LoadRunner.class);
 
         try {
+            if (testOpts.driverMetrics) {
+                driverMetrics = new DriverMetrics();
+            }
             // For not authentication via connection string passing of user/pass only
-            mongoClient = MongoClients.create(testOpts.connectionDetails);
+            // Only the sync client is watched, the async one sees the same cluster
+            mongoClient = MongoClients.create(clientSettings(testOpts)
+                    .applyToClusterSettings(cluster -> cluster.addClusterListener(topologyMonitor)).build());
+            topologyMonitor.start(mongoClient, testOpts.reportTime);
         } catch (Exception ex) {
             StringWriter errors = new StringWriter();
             ex.printStackTrace(new PrintWriter(errors));
@@ -38,6 +54,26 @@ public class LoadRunner {
         }
     }
 
+    /**
+     * Done with every phase - stop watching the cluster and disconnect
+     */
+    public void Close() {
+        topologyMonitor.stop();
+        if (mongoClient != null) {
+            mongoClient.close();
+        }
+    }
+
+    private MongoClientSettings.Builder clientSettings(POCTestOptions testOpts) {
+        MongoClientSettings.Builder settings = MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(testOpts.connectionDetails));
+        if (driverMetrics != null) {
+            settings.addCommandListener(driverMetrics)
+                    .applyToConnectionPoolSettings(pool -> pool.addConnectionPoolListener(driverMetrics));
+        }
+        return settings;
+    }
+
     private void PrepareSystem(POCTestOptions testOpts, POCTestResults results) {
         MongoDatabase db;
         MongoCollection<Document> coll;
@@ -55,6 +91,7 @@ public class LoadRunner {
 
             if (testOpts.emptyFirst) {
                 coll.drop();
+                workerPositions.clear();
             }
 
             TestRecord testRecord = new TestRecord(testOpts);
@@ -138,30 +175,123 @@ public class LoadRunner {
     public void RunLoad(POCTestOptions testOpts, POCTestResults testResults) {
 
         PrepareSystem(testOpts, testResults);
+        DocumentPool docPool = testOpts.docPoolSize > 0 ? new DocumentPool(testOpts) : null;
+        if (docPool != null) {
+            docPool.start();
+        }
+        StalenessProbe staleness = null;
+        Thread stalenessThread = null;
+        if (testOpts.stalenessMs > 0) {
+            staleness = new StalenessProbe(mongoClient, testOpts);
+            stalenessThread = new Thread(staleness, "staleness-probe");
+            stalenessThread.setDaemon(true);
+            stalenessThread.start();
+        }
         // Report on progress by looking at testResults
-        POCTestReporter reporter = new POCTestReporter(testResults, mongoClient, testOpts);
+        POCTestReporter reporter = new POCTestReporter(testResults, mongoClient, testOpts, docPool, driverMetrics,
+                topologyMonitor, staleness);
+        MetricsServer metrics = null;
+        if (testOpts.metricsPort > 0) {
+            try {
+                metrics = new MetricsServer(testResults, testOpts);
+                metrics.start();
+            } catch (IOException e) {
+                logger.error("Cannot serve metrics on port {}: {}", testOpts.metricsPort, e.getMessage());
+            }
+        }
 
-        // Using a thread pool we keep filled
-        ExecutorService testexec = Executors.newFixedThreadPool(testOpts.numThreads);
+        ExecutorService testexec = null;
+        // checkOptions only allows virtual threads for the sync workers
+        if (testOpts.virtualThreads) {
+            testexec = newVirtualThreadExecutor();
+            if (testexec == null) {
+                testOpts.virtualThreads = false;
+            }
+        }
 
         // Allow for multiple clients to run -
         // Check for testOpts.threadIdStart - this should be an integer to start
         // the 'workerID' for each set of threads.
         int threadIdStart = testOpts.threadIdStart;
         logger.info("threadIdStart={}", threadIdStart);
-        ArrayList<MongoWorker> workforce = new ArrayList<>();
-        logger.info("Launching worker threads");
-        for (int i = threadIdStart; i < (testOpts.numThreads + threadIdStart); i++) {
-            logger.info("Creating worker {}", i);
-            workforce.add(new MongoWorker(mongoClient, testOpts, testResults, i));
-        }
-        logger.info("Worker threads all started");
 
         ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-        executor.scheduleAtFixedRate(reporter, 0, testOpts.reportTime, TimeUnit.SECONDS);
+        if (testOpts.targetDocs > 0) {
+            executor.scheduleAtFixedRate(() -> {
+                long docs = testResults.initialCount + testResults.GetOpsDone(OpType.INSERTS) - testResults.GetDocsDeleted();
+                if (docs >= testOpts.targetDocs) {
+                    testResults.StopTest();
+                }
+            }, 100, 100, TimeUnit.MILLISECONDS);
+        }
+        if (testOpts.loadProfile != null) {
+            // Fine grained enough that a ramp looks smooth to the server
+            executor.scheduleAtFixedRate(() -> testOpts.loadProfile.apply(testOpts, testResults),
+                    0, 100, TimeUnit.MILLISECONDS);
+        }
+
+        com.mongodb.reactivestreams.client.MongoClient asyncClient = null;
+
+        if (testOpts.loadDocs > 0) {
+            testexec = Executors.newFixedThreadPool(testOpts.numThreads);
+            logger.info("Loading {} documents with {} threads, {} batches in flight each",
+                    testOpts.loadDocs, testOpts.numThreads, testOpts.batchesInFlight);
+            // Loaders don't keep track of where the workers are up to
+            workerPositions.clear();
+            ArrayList<BulkLoader> loaders = new ArrayList<>();
+            for (int i = 0; i < testOpts.numThreads; i++) {
+                loaders.add(new BulkLoader(mongoClient, testOpts, testResults, i + threadIdStart,
+                        BulkLoader.share(testOpts.loadDocs, testOpts.numThreads, i), docPool));
+            }
+            executor.scheduleAtFixedRate(reporter, 0, testOpts.reportTime, TimeUnit.SECONDS);
+            for (BulkLoader l : loaders) {
+                testexec.execute(l);
+            }
+        } else if (testOpts.async) {
+            // Each worker keeps many ops in flight so we need far fewer threads
+            asyncClient = com.mongodb.reactivestreams.client.MongoClients.create(clientSettings(testOpts).build());
+            testexec = Executors.newFixedThreadPool(testOpts.numThreads);
+            logger.info("Launching async worker threads with {} ops in flight each", testOpts.asyncInFlight);
+            ArrayList<AsyncMongoWorker> workforce = new ArrayList<>();
+            for (int i = threadIdStart; i < (testOpts.numThreads + threadIdStart); i++) {
+                workforce.add(new AsyncMongoWorker(asyncClient, mongoClient, testOpts, testResults, i, docPool));
+            }
+            executor.scheduleAtFixedRate(reporter, 0, testOpts.reportTime, TimeUnit.SECONDS);
+            for (AsyncMongoWorker w : workforce) {
+                testexec.execute(w);
+            }
+        } else if (testOpts.virtualThreads) {
+            // Could be tens of thousands of workers so let them all connect
+            // and find their place in the collection in parallel
+            logger.info("Launching {} virtual worker threads", testOpts.numThreads);
+            executor.scheduleAtFixedRate(reporter, 0, testOpts.reportTime, TimeUnit.SECONDS);
+            for (int i = threadIdStart; i < (testOpts.numThreads + threadIdStart); i++) {
+                final int workerID = i;
+                testexec.execute(() -> {
+                    try {
+                        new MongoWorker(mongoClient, testOpts, testResults, workerID, docPool, workerPositions).run();
+                    } catch (Exception e) {
+                        logger.warn("Worker {} failed to start: {}", workerID, e.getMessage());
+                    }
+                });
+            }
+        } else {
+            // Using a thread pool we keep filled
+            testexec = Executors.newFixedThreadPool(testOpts.numThreads);
 
-        for (MongoWorker w : workforce) {
-            testexec.execute(w);
+            ArrayList<MongoWorker> workforce = new ArrayList<>();
+            logger.info("Launching worker threads");
+            for (int i = threadIdStart; i < (testOpts.numThreads + threadIdStart); i++) {
+                logger.info("Creating worker {}", i);
+                workforce.add(new MongoWorker(mongoClient, testOpts, testResults, i, docPool, workerPositions));
+            }
+            logger.info("Worker threads all started");
+
+            executor.scheduleAtFixedRate(reporter, 0, testOpts.reportTime, TimeUnit.SECONDS);
+
+            for (MongoWorker w : workforce) {
+                testexec.execute(w);
+            }
         }
 
         testexec.shutdown();
@@ -170,12 +300,45 @@ public class LoadRunner {
             testexec.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
             logger.info("All Threads Complete");
             executor.shutdown();
+            // Don't let a last report overlap the final one
+            executor.awaitTermination(testOpts.reportTime, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
             logger.error(e.getMessage());
 
         }
+        if (asyncClient != null) {
+            asyncClient.close();
+        }
+        if (docPool != null) {
+            docPool.stop();
+        }
+        if (staleness != null) {
+            staleness.stop();
+            try {
+                stalenessThread.join(TimeUnit.SECONDS.toMillis(testOpts.reportTime));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
         // do final report
         reporter.finalReport();
+        if (metrics != null) {
+            metrics.stop();
+        }
+    }
+
+    /**
+     * One virtual thread per worker - that needs Java 21 at runtime but we still
+     * build for 17, so look it up by reflection. Null if this JVM can't do it.
+     */
+    private ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Virtual threads need Java 21 or later, using a fixed thread pool instead");
+            return null;
+        }
     }
 }
@@ -0,0 +1,163 @@
+package com.johnlpage.pocdriver;
+
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the highest -q rate that still meets a p99 latency target.
+ * <p>
+ * Each step holds a rate for a few report intervals, throwing away the first as the
+ * workers settle. A step passes if the worst p99 of any op type, measured from the
+ * intended start time, is within the target and we got close to the rate we asked for.
+ * We double the rate until a step fails, then binary search between the best pass
+ * and the lowest fail until they are within 5% and stop the test.
+ */
+public class LoadTuner {
+    // Close enough - run to run noise is bigger than this
+    static final double TOLERANCE = 0.05;
+    // Below this fraction of the target rate the server isn't keeping up, whatever the latency
+    static final double MIN_ACHIEVED = 0.95;
+
+    private final POCTestResults testResults;
+    private final POCTestOptions testOpts;
+    private final long sloMicros;
+    private final int intervalsPerStep;
+    private final Histogram[] stepLatency;
+    private final List<Step> steps = new ArrayList<>();
+    Logger logger;
+
+    // Highest rate that passed and lowest that failed, 0 for none yet
+    int bestRate = 0;
+    int failedRate = 0;
+    boolean done = false;
+
+    private int intervals = 0;
+    private long stepStartOps;
+    private long stepStartNanos;
+
+    static class Step {
+        final int rate;
+        final double achieved;
+        final double p99Ms;
+        final boolean passed;
+
+        Step(int rate, double achieved, double p99Ms, boolean passed) {
+            this.rate = rate;
+            this.achieved = achieved;
+            this.p99Ms = p99Ms;
+            this.passed = passed;
+        }
+    }
+
+    LoadTuner(POCTestOptions t, POCTestResults r) {
+        testOpts = t;
+        testResults = r;
+        logger = LoggerFactory.getLogger(LoadTuner.class);
+        sloMicros = (long) (testOpts.sloMs * 1000);
+        intervalsPerStep = Math.max(2, testOpts.tuneStep / testOpts.reportTime);
+        stepLatency = new Histogram[OpType.ALL.length];
+        for (OpType o : OpType.ALL) {
+            stepLatency[o.ordinal()] = LatencyRecorder.newHistogram();
+        }
+        logger.info("Tuning for p99 under {} ms starting at {} ops/s, {} intervals a step",
+                testOpts.sloMs, testOpts.opsPerSecond, intervalsPerStep);
+    }
+
+    /**
+     * Called by the reporter after each SampleLatencies()
+     */
+    void intervalDone() {
+        if (done) {
+            return;
+        }
+        intervals++;
+        if (intervals == 1) {
+            // Settling in at the new rate, measure from here
+            stepStartOps = totalOps();
+            stepStartNanos = System.nanoTime();
+            for (Histogram h : stepLatency) {
+                h.reset();
+            }
+            return;
+        }
+        for (OpType o : OpType.ALL) {
+            stepLatency[o.ordinal()].add(testResults.GetIntervalCorrectedLatency(o));
+        }
+        if (intervals < intervalsPerStep) {
+            return;
+        }
+
+        int rate = testOpts.opsPerSecond;
+        double achieved = (totalOps() - stepStartOps) * 1e9 / Math.max(System.nanoTime() - stepStartNanos, 1);
+        long p99 = 0;
+        for (Histogram h : stepLatency) {
+            if (h.getTotalCount() > 0) {
+                p99 = Math.max(p99, h.getValueAtPercentile(99));
+            }
+        }
+        boolean passed = p99 <= sloMicros && achieved >= rate * MIN_ACHIEVED;
+        steps.add(new Step(rate, achieved, p99 / 1000.0, passed));
+        System.out.format("Tuning: %,d ops/s target, %,.0f achieved, p99 %.3f ms - %s%n",
+                rate, achieved, p99 / 1000.0, passed ? "pass" : "fail");
+
+        int next = nextRate(rate, passed);
+        intervals = 0;
+        if (next == 0) {
+            done = true;
+            testResults.StopTest();
+        } else {
+            testOpts.opsPerSecond = next;
+            testResults.GetRateLimiter().setRate(next);
+        }
+    }
+
+    /**
+     * @return the rate to try next, 0 when we have found the answer
+     */
+    int nextRate(int rate, boolean passed) {
+        if (passed) {
+            bestRate = Math.max(bestRate, rate);
+        } else if (failedRate == 0 || rate < failedRate) {
+            failedRate = rate;
+        }
+        if (failedRate == 0) {
+            // Haven't found the limit yet
+            return rate > Integer.MAX_VALUE / 2 ? 0 : rate * 2;
+        }
+        if (bestRate == 0) {
+            // Haven't found a rate that works yet
+            return failedRate > 1 ? failedRate / 2 : 0;
+        }
+        if (failedRate - bestRate <= bestRate * TOLERANCE) {
+            return 0;
+        }
+        return bestRate + (failedRate - bestRate) / 2;
+    }
+
+    private long totalOps() {
+        long total = 0;
+        for (OpType o : OpType.ALL) {
+            total += testResults.GetOpsDone(o);
+        }
+        return total;
+    }
+
+    void printReport() {
+        System.out.format("Capacity for p99 under %.3f ms%n", testOpts.sloMs);
+        System.out.format("%12s %12s %10s%n", "target/s", "achieved/s", "p99 ms");
+        for (Step s : steps) {
+            System.out.format("%,12d %,12.0f %10.3f %s%n", s.rate, s.achieved, s.p99Ms, s.passed ? "pass" : "fail");
+        }
+        if (bestRate > 0) {
+            System.out.format("Highest sustainable rate %,d ops/s%s%n", bestRate,
+                    done ? "" : " (search not finished, try a longer -d)");
+        } else {
+            System.out.format("No rate tried met the target%s%n", done ? "" : " yet");
+        }
+        System.out.println();
+    }
+}
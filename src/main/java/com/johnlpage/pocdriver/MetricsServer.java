@@ -0,0 +1,134 @@
+package com.johnlpage.pocdriver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the live results at /metrics in the Prometheus text format, using the JDK's own HTTP server.
+ * <p>
+ * Counters are read straight from POCTestResults - LongAdder sums don't block the workers.
+ * Latencies come from the copies the reporter publishes each interval so a scrape
+ * never touches a histogram that is being written to.
+ */
+public class MetricsServer {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.95, 0.99, 0.999};
+
+    private final POCTestResults testResults;
+    private final POCTestOptions testOpts;
+    private final HttpServer server;
+    private final Logger logger;
+
+    MetricsServer(POCTestResults r, POCTestOptions t) throws IOException {
+        testResults = r;
+        testResults.PublishLatencies();
+        testOpts = t;
+        logger = LoggerFactory.getLogger(MetricsServer.class);
+        server = HttpServer.create(new InetSocketAddress(testOpts.metricsPort), 0);
+        server.createContext("/metrics", this::handle);
+        // One thread is plenty for a scraper every few seconds
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    void start() {
+        server.start();
+        logger.info("Serving metrics on http://localhost:{}/metrics", testOpts.metricsPort);
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    String render() {
+        StringBuilder sb = new StringBuilder(4096);
+
+        header(sb, "pocdriver_ops_total", "counter", "Operations done");
+        for (OpType o : OpType.ALL) {
+            sample(sb, "pocdriver_ops_total", o, null, testResults.GetOpsDone(o));
+        }
+        header(sb, "pocdriver_errors_total", "counter", "Operations that failed");
+        for (OpType o : OpType.ALL) {
+            sample(sb, "pocdriver_errors_total", o, null, testResults.GetErrors(o));
+        }
+        header(sb, "pocdriver_ops_in_flight", "gauge", "Operations sent and not yet returned");
+        for (OpType o : OpType.ALL) {
+            sample(sb, "pocdriver_ops_in_flight", o, null, testResults.GetOpsInFlight(o));
+        }
+        latency(sb, "pocdriver_latency_seconds", "Operation latency, updated each report interval", false);
+        if (testOpts.openLoop && testOpts.opsPerSecond > 0) {
+            latency(sb, "pocdriver_corrected_latency_seconds",
+                    "Operation latency from the intended start time, updated each report interval", true);
+        }
+
+        header(sb, "pocdriver_target_ops_per_second", "gauge", "The -q rate limit, 0 for none");
+        sample(sb, "pocdriver_target_ops_per_second", null, null, testOpts.opsPerSecond);
+        header(sb, "pocdriver_workers", "gauge", "Worker threads running");
+        sample(sb, "pocdriver_workers", null, null, testResults.GetActiveWorkers());
+        header(sb, "pocdriver_docs_deleted_total", "counter", "Documents removed by deletes");
+        sample(sb, "pocdriver_docs_deleted_total", null, null, testResults.GetDocsDeleted());
+        header(sb, "pocdriver_elapsed_seconds", "gauge", "Time since the test started");
+        sample(sb, "pocdriver_elapsed_seconds", null, null, testResults.GetExactSecondsElapsed());
+        return sb.toString();
+    }
+
+    // HdrHistogram gives us exact percentiles, so a summary rather than buckets
+    private void latency(StringBuilder sb, String name, String help, boolean corrected) {
+        header(sb, name, "summary", help);
+        for (OpType o : OpType.ALL) {
+            Histogram h = testResults.GetPublishedLatency(o, corrected);
+            if (h == null || h.getTotalCount() == 0) {
+                continue;
+            }
+            for (double q : QUANTILES) {
+                sample(sb, name, o, q, h.getValueAtPercentile(q * 100) / 1e6);
+            }
+            sample(sb, name + "_sum", o, null, h.getMean() * h.getTotalCount() / 1e6);
+            sample(sb, name + "_count", o, null, h.getTotalCount());
+        }
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, OpType op, Double quantile, Number value) {
+        sb.append(name);
+        if (op != null) {
+            sb.append("{op=\"").append(op).append('"');
+            if (quantile != null) {
+                sb.append(",quantile=\"").append(quantile).append('"');
+            }
+            sb.append('}');
+        }
+        sb.append(' ');
+        if (value instanceof Double) {
+            sb.append(String.format(Locale.ROOT, "%.6f", value.doubleValue()));
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+}
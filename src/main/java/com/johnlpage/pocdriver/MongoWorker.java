@@ -1,30 +1,44 @@
 package com.johnlpage.pocdriver;
 
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
 import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
 import com.mongodb.client.model.InsertOneModel;
 import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.WriteModel;
-import org.apache.commons.math3.distribution.ZipfDistribution;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.time.ZonedDateTime;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static com.mongodb.client.model.Projections.fields;
 import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.ascending;
 import static com.mongodb.client.model.Sorts.descending;
 
 public class MongoWorker implements Runnable {
 
+    // Op types for the scheduler, in the order of the weights we give it
+    private static final int OP_INSERT = 0;
+    private static final int OP_KEYQUERY = 1;
+    private static final int OP_RANGEQUERY = 2;
+    private static final int OP_UPDATE = 3;
+    private static final int OP_DELETE = 4;
+    private static final int OP_RANGEDELETE = 5;
+    private static final int OP_ARRAYUPDATE = 6;
+
     private final MongoClient mongoClient;
     private final POCTestOptions testOpts;
     private final POCTestResults testResults;
@@ -32,28 +46,71 @@ public class MongoWorker implements Runnable {
     private final Random rng;
     private final int maxCollections;
     private final BulkWriteOptions bulkOptions = new BulkWriteOptions();
+    private final LatencyRecorder latencies;
+    private final BatchPipeline pipeline;
+    private final boolean openLoop;
+    private final DocumentPool docPool;
+    private RawRecordTemplate rawTemplate;
+    // --rawbson inserts, sent ahead of the rest of their batch through a raw BSON collection
+    private List<WriteModel<RawBsonDocument>> rawInserts = new ArrayList<>();
     Logger logger;
     private MongoCollection<Document> coll;
     private ArrayList<MongoCollection<Document>> colls;
+    // coll with --readpref and --readconcern applied, for each collection we rotate through
+    private final Map<MongoCollection<Document>, MongoCollection<Document>> keyQueryColls = new IdentityHashMap<>();
+    private final Map<MongoCollection<Document>, MongoCollection<Document>> rangeQueryColls = new IdentityHashMap<>();
     private int sequence;
+    // Oldest record we still have, deletes take from here and inserts add at sequence
+    private int tail = 0;
+    private int windowSize = 0;
+    // Deletes in the current batch, their latency is recorded when it's flushed
+    private int pendingDeletes = 0;
+    private int pendingRangeDeletes = 0;
+    private int pendingArrayUpdates = 0;
     private int numShards = 0;
-    private ZipfDistribution zipf;
+    private KeyDistribution keys;
+    private OpScheduler opScheduler;
+    // The command line ratios, and the --profile mix the scheduler was last built from
+    private int[] weights;
+    private int[] profileMix;
     private boolean workflowed = false;
-    private boolean zipfian = false;
     private String workflow;
     private int workflowStep = 0;
     private ArrayList<Document> keyStack;
     private int lastCollection;
-
-    MongoWorker(MongoClient c, POCTestOptions t, POCTestResults r, int id) {
+    private final Map<String, int[]> positions;
+    // Only keep track of the tail if we might delete from it
+    private final boolean deleting;
+    // Null if we run flat out
+    private final RateLimiter rateLimiter;
+    // How late we started this op against the open loop schedule
+    private long scheduleLagNanos;
+
+    /**
+     * @param pool      pre-built documents to insert, null to build them as we go
+     * @param positions where each worker got to in earlier phases, so the next phase doesn't
+     *                  have to query for it or split and move chunks again. Null to always look.
+     */
+    MongoWorker(MongoClient c, POCTestOptions t, POCTestResults r, int id, DocumentPool pool,
+                Map<String, int[]> positions) {
         mongoClient = c;
+        this.positions = positions;
+        docPool = pool;
         logger = LoggerFactory.getLogger(MongoWorker.class);
         // Ping
         c.getDatabase("admin").runCommand(new Document("ping", 1));
         testOpts = t;
         testResults = r;
         workerID = id;
+        // With batches in flight the pipeline's threads record too
+        latencies = t.virtualThreads ? r.sharedLatencyRecorder(id) : r.newLatencyRecorder(t.batchesInFlight > 1);
+        pipeline = new BatchPipeline(t.batchesInFlight);
+        openLoop = t.openLoop && t.opsPerSecond > 0;
+        rateLimiter = r.GetRateLimiter();
         MongoDatabase db = mongoClient.getDatabase(testOpts.databaseName);
+        if (testOpts.consistency.writeConcern() != null) {
+            db = db.withWriteConcern(testOpts.consistency.writeConcern());
+        }
         maxCollections = testOpts.numcollections;
         String baseCollectionName = testOpts.collectionName;
         if (maxCollections > 1) {
@@ -68,22 +125,42 @@ public class MongoWorker implements Runnable {
         }
 
         // id
-        sequence = getHighestID();
+        int[] known = positions == null ? null : positions.get(positionKey());
+        sequence = known != null ? known[0] : getHighestID();
+        deleting = testOpts.deletes > 0 || testOpts.rangedeletes > 0 || testOpts.windowSize > 0
+                || (testOpts.loadProfile != null && (testOpts.loadProfile.uses("D") || testOpts.loadProfile.uses("rangedeletes")));
+        if (deleting) {
+            tail = known != null && known[1] >= 0 ? known[1] : findLowestID(coll, workerID);
+            // Each worker keeps its share of the window
+            windowSize = (testOpts.windowSize + testOpts.numThreads - 1) / testOpts.numThreads;
+        }
 
-        ReviewShards();
-        rng = new Random();
-        if (testOpts.zipfian) {
-            zipfian = true;
-            zipf = new ZipfDistribution(testOpts.zipfsize, 0.99);
+        if (known != null && known[2] == testOpts.numShards) {
+            // Our chunk is already where we want it
+            numShards = known[2];
+        } else {
+            ReviewShards();
         }
+        rng = new Random();
+        keys = new KeyDistribution(testOpts, rng);
 
         if (testOpts.workflow != null) {
             workflow = testOpts.workflow;
             workflowed = true;
             keyStack = new ArrayList<>();
+        } else {
+            weights = new int[]{testOpts.insertops, testOpts.keyqueries, testOpts.rangequeries,
+                    testOpts.updates, testOpts.deletes, testOpts.rangedeletes, testOpts.arrayupdates};
+            opScheduler = OpScheduler.forOptions(testOpts, weights, rng);
         }
         bulkOptions.ordered(testOpts.orderedBatch);
 
+        if (testOpts.rawBson) {
+            int[] arr = new int[]{testOpts.arraytop, testOpts.arraynext};
+            TestRecord tr = new TestRecord(testOpts.numFields, testOpts.depth, testOpts.textFieldLen, workerID, 0,
+                    testOpts.NUMBER_SIZE, arr, testOpts.blobSize, testOpts.locationCodes);
+            rawTemplate = new RawRecordTemplate(tr.toBson(), testOpts.NUMBER_SIZE, rng.nextLong());
+        }
     }
 
     private void ReviewShards() {
@@ -184,33 +261,19 @@ public class MongoWorker implements Runnable {
     }
 
     private int getNextVal(int mult) {
-        int rval;
-        if (zipfian) {
-            rval = zipf.sample();
-        } else {
-            if (testOpts.opsratio) {
-                rval = (int) Math.abs(Math.floor(rng.nextDouble() * mult));
-            } else {
-                // What operation we do depends on the time so we take a fairly
-                // time and mod it with multi , if we use nanosecnods then this won't work
-                // Seconds is way too large althoughwe coudl scale it
-                // milliseonds might be OK but then 1:1 is not 100:100 so we need to be a bit
-                // smarter
-                long now = ZonedDateTime.now().toInstant().toEpochMilli();
-                if (mult == 0) {
-                    mult = 1;
-                }
-                rval = (int) (now % mult);
-
-            }
-        }
-        return rval;
+        return keys.next(mult);
     }
 
     private int getHighestID() {
-        int rval = 0;
-
         rotateCollection();
+        return findHighestID(coll, workerID);
+    }
+
+    /**
+     * @return the next unused sequence number for this worker in the collection
+     */
+    static int findHighestID(MongoCollection<Document> coll, int workerID) {
+        int rval = 0;
         Document query = new Document();
 
         // TODO Refactor the query for 3.0 driver
@@ -227,120 +290,370 @@ public class MongoWorker implements Runnable {
         return rval;
     }
 
+    /**
+     * @return the lowest sequence number this worker has in the collection
+     */
+    static int findLowestID(MongoCollection<Document> coll, int workerID) {
+        Document limits = new Document("$gt", new Document("w", workerID));
+        limits.append("$lt", new Document("w", workerID + 1));
+
+        Document myDoc = coll.find(new Document("_id", limits)).projection(include("_id")).sort(ascending("_id")).first();
+        if (myDoc != null) {
+            return ((Document) myDoc.get("_id")).getInteger("i");
+        }
+        return 0;
+    }
+
+    /**
+     * @return a record number from the working set, the most recent -j percent of what we have
+     */
+    private int workingSetKey() {
+        int range = (sequence - tail) * testOpts.workingset / 100;
+        int rest = sequence - range;
+
+        return rest + getNextVal(range);
+    }
+
+    /**
+     * @return how many ops of each type are in a batch, indexed by OpType.ordinal()
+     */
+    static int[] countBatch(List<? extends WriteModel<?>> batch) {
+        int[] counts = new int[OpType.ALL.length];
+        for (WriteModel<?> model : batch) {
+            counts[opTypeOf(model).ordinal()]++;
+        }
+        return counts;
+    }
+
+    static OpType opTypeOf(WriteModel<?> model) {
+        if (model instanceof InsertOneModel) {
+            return OpType.INSERTS;
+        } else if (model instanceof UpdateOneModel) {
+            return OpType.ARRAYUPDATES;
+        } else if (model instanceof DeleteOneModel) {
+            return OpType.DELETES;
+        } else if (model instanceof DeleteManyModel) {
+            return OpType.RANGEDELETES;
+        }
+        return OpType.UPDATES;
+    }
+
+    /**
+     * @param sign 1 as a batch is sent, -1 when it comes back
+     */
+    static void recordInFlight(POCTestResults results, int[] batch, int sign) {
+        for (OpType o : OpType.ALL) {
+            if (batch[o.ordinal()] > 0) {
+                results.RecordOpsInFlight(o, sign * batch[o.ordinal()]);
+            }
+        }
+    }
+
+    // If a batch fails everything in it counts as an error
+    static void recordErrors(POCTestResults results, int[] batch, ErrorClass errorClass) {
+        for (OpType o : OpType.ALL) {
+            if (batch[o.ordinal()] > 0) {
+                results.RecordErrors(o, errorClass, batch[o.ordinal()]);
+            }
+        }
+    }
+
+    /**
+     * Send the batch - on its own if it's just inserts and --batchesinflight lets us, while
+     * we get on with the next one. New _ids can go in any order but anything touching
+     * existing documents waits for every earlier batch, so it sees the same collection it
+     * would have done one batch at a time.
+     * <p>
+     * With --rawbson the inserts go first as a batch of their own, so anything later in the
+     * batch that touches them waits for them.
+     */
+    private void flushBulkOps(List<WriteModel<Document>> bulkWriter) throws InterruptedException {
+        rotateCollection();
+        MongoCollection<Document> target = coll;
+        int arrayUpdates = pendingArrayUpdates;
+        int deletes = pendingDeletes;
+        int rangeDeletes = pendingRangeDeletes;
+        long lagNanos = scheduleLagNanos;
+        pendingDeletes = 0;
+        pendingRangeDeletes = 0;
+        pendingArrayUpdates = 0;
+
+        if (!rawInserts.isEmpty()) {
+            List<WriteModel<RawBsonDocument>> raw = rawInserts;
+            rawInserts = new ArrayList<>();
+            submitBatch(target.withDocumentClass(RawBsonDocument.class), raw, 0, 0, 0, lagNanos);
+        }
+        if (!bulkWriter.isEmpty()) {
+            submitBatch(target, bulkWriter, arrayUpdates, deletes, rangeDeletes, lagNanos);
+        }
+    }
+
+    private <T> void submitBatch(MongoCollection<T> target, List<WriteModel<T>> bulkWriter, int arrayUpdates,
+                                 int deletes, int rangeDeletes, long lagNanos) throws InterruptedException {
+        int[] batch = countBatch(bulkWriter);
+        if (batch[OpType.INSERTS.ordinal()] < bulkWriter.size()) {
+            pipeline.drain();
+        }
+        if (pipeline.depth() == 1) {
+            // One at a time, as it always was
+            writeBatch(target, bulkWriter, batch, arrayUpdates, deletes, rangeDeletes, lagNanos);
+            return;
+        }
+        pipeline.submit(() -> {
+            try {
+                writeBatch(target, bulkWriter, batch, arrayUpdates, deletes, rangeDeletes, lagNanos);
+            } catch (RuntimeException e) {
+                logger.warn("Error: {}", e.getMessage());
+                if (testOpts.debug)
+                    e.printStackTrace();
+            }
+        });
+    }
+
     // This one was a major rewrite as the whole Bulk Ops API changed in 3.0
 
-    private void flushBulkOps(List<WriteModel<Document>> bulkWriter) {
+    private <T> void writeBatch(MongoCollection<T> target, List<WriteModel<T>> bulkWriter, int[] batch,
+                                int arrayUpdates, int deletes, int rangeDeletes, long lagNanos) {
         // Time this.
-        rotateCollection();
-        Date starttime = new Date();
+        long starttime = System.nanoTime();
 
         // This is where ALL writes are happening
         // So this can fail part way through if we have a failover
-        // In which case we resubmit it
-
-        boolean submitted = false;
-        BulkWriteResult bwResult = null;
-
-        while (!submitted && !bulkWriter.isEmpty()) { // can be empty if we removed a Dupe key error
+        // In which case we resubmit whatever didn't happen
+
+        int icount = 0;
+        int ucount = 0;
+        int dcount = 0;
+        int attempt = 0;
+        // However many times it goes round, a failed batch only counts as errors once
+        boolean errorsCounted = false;
+        List<WriteModel<T>> toSend = bulkWriter;
+        recordInFlight(testResults, batch, 1);
+
+        while (!toSend.isEmpty()) {
+            long attemptStart = System.nanoTime();
             try {
-                submitted = true;
-                bwResult = coll.bulkWrite(bulkWriter, bulkOptions);
-            } catch (Exception e) {
-                // We had a problem with this bulk op - some may be completed, some may not
-
-                // I need to resubmit it here
-                String error = e.getMessage();
-
-                // Check if it's a sup key and remove it
-                Pattern p = Pattern.compile("dup key: \\{ : \\{ w: (.*?), i: (.*?) }");
-
-                Matcher m = p.matcher(error);
-                if (m.find()) {
-                    logger.debug("Duplicate Key");
-                    int thread = Integer.parseInt(m.group(1));
-                    int uniqid = Integer.parseInt(m.group(2));
-                    logger.debug(" ID = {} {}", thread, uniqid);
-                    boolean found = false;
-                    for (Iterator<? super WriteModel<Document>> iter = bulkWriter.listIterator(); iter.hasNext(); ) {
-                        // Check if it's a InsertOneModel
-
-                        Object o = iter.next();
-                        if (o instanceof InsertOneModel<?>) {
-                            @SuppressWarnings("unchecked")
-                            InsertOneModel<Document> a = (InsertOneModel<Document>) o;
-                            Document id = (Document) a.getDocument().get("_id");
-
-                            if (id.getInteger("i") == uniqid) {
-                                logger.debug(" Removing {} {} from bulkop as already inserted", thread, uniqid);
-                                iter.remove();
-                                found = true;
-                            }
-                        }
+                BulkWriteResult bwResult = target.bulkWrite(toSend, bulkOptions);
+                icount += bwResult.getInsertedCount();
+                ucount += bwResult.getMatchedCount();
+                dcount += bwResult.getDeletedCount();
+                testResults.RecordSuccess(attemptStart);
+                break;
+            } catch (MongoBulkWriteException e) {
+                // The server tells us exactly which ones failed
+                BulkWriteResult partial = e.getWriteResult();
+                icount += partial.getInsertedCount();
+                ucount += partial.getMatchedCount();
+                dcount += partial.getDeletedCount();
+                boolean retrying = false;
+                for (BulkWriteError error : e.getWriteErrors()) {
+                    boolean retryable = ErrorClass.retryable(error.getCode());
+                    if (ErrorCategory.fromErrorCode(error.getCode()) == ErrorCategory.DUPLICATE_KEY) {
+                        // Got there on an earlier attempt
+                        logger.debug("Duplicate key at {} in batch, already inserted", error.getIndex());
+                    } else if (!retryable || !errorsCounted) {
+                        // Ones we send again only count the first time round
+                        testResults.RecordErrors(opTypeOf(toSend.get(error.getIndex())),
+                                ErrorClass.ofCode(error.getCode()), 1);
+                        logger.warn("Write failed with {}: {}", error.getCode(), error.getMessage());
                     }
-                    if (!found) {
-                        logger.warn("Cannot find failed op in batch!");
+                    retrying |= retryable;
+                }
+                if (e.getWriteConcernError() != null) {
+                    // Written but not acknowledged as far as we asked
+                    if (!errorsCounted) {
+                        recordErrors(testResults, countBatch(toSend), ErrorClass.WRITE_CONCERN);
+                        errorsCounted = true;
                     }
-                } else {
-                    // Some other error occurred - possibly MongoCommandException,
-                    // MongoTimeoutException
-                    logger.warn("{}: {}", e.getClass().getSimpleName(), error);
-                    // Print a full stacktrace since we're in debug mode
-                    if (testOpts.debug)
-                        e.printStackTrace();
+                    logger.warn("Write concern failed: {}", e.getWriteConcernError().getMessage());
+                }
+                toSend = remainingAfter(toSend, e.getWriteErrors(), testOpts.orderedBatch);
+                if (!toSend.isEmpty()) {
+                    testResults.RecordRetry(String.valueOf(e.getWriteErrors().get(0).getCode()));
+                }
+                if (retrying) {
+                    errorsCounted = true;
+                    if (!waitToRetry(attempt++)) {
+                        break;
+                    }
+                }
+            } catch (MongoException e) {
+                // Nothing back, some of it may have happened - possibly a failover,
+                // MongoSocketException or MongoTimeoutException
+                if (!errorsCounted) {
+                    recordErrors(testResults, countBatch(toSend), ErrorClass.of(e));
+                    errorsCounted = true;
+                }
+                testResults.RecordRetry(retryReason(e));
+                logger.warn("{}: {}", e.getClass().getSimpleName(), e.getMessage());
+                // Print a full stacktrace since we're in debug mode
+                if (testOpts.debug)
+                    e.printStackTrace();
+                if (!waitToRetry(attempt++)) {
+                    break;
                 }
-                logger.debug("No result returned");
-                submitted = false;
+                toSend = dropExistingInserts(target, workerID, toSend);
             }
         }
 
-        Date endtime = new Date();
+        long taken = System.nanoTime() - starttime;
+        recordInFlight(testResults, batch, -1);
 
-        Long taken = endtime.getTime() - starttime.getTime();
+        // If the bulk op is slow - ALL those ops were slow
+        recordLatency(OpType.INSERTS, taken, lagNanos, icount);
+        // Array updates are in the matched count too
+        recordLatency(OpType.UPDATES, taken, lagNanos, Math.max(ucount - arrayUpdates, 0));
+        recordLatency(OpType.ARRAYUPDATES, taken, lagNanos, arrayUpdates);
+        recordLatency(OpType.DELETES, taken, lagNanos, deletes);
+        recordLatency(OpType.RANGEDELETES, taken, lagNanos, rangeDeletes);
 
-        assert bwResult != null;
-        int icount = bwResult.getInsertedCount();
-        int ucount = bwResult.getMatchedCount();
+        testResults.RecordOpsDone(OpType.INSERTS, icount);
+        testResults.RecordDocsDeleted(dcount);
 
-        // If the bulk op is slow - ALL those ops were slow
-        recordSlowOps("inserts", taken, icount);
-        recordSlowOps("updates", taken, ucount);
+    }
 
-        testResults.RecordOpsDone("inserts", icount);
+    /**
+     * Don't hammer a cluster that's electing
+     *
+     * @return false if we should give up on the batch instead
+     */
+    private boolean waitToRetry(int attempt) {
+        if (testResults.StopRequested()) {
+            return false;
+        }
+        try {
+            Thread.sleep(Math.min(10L << Math.min(attempt, 10), 1000));
+            return true;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * What still needs sending after a MongoBulkWriteException. Models that failed because
+     * the cluster couldn't take them right then go again, ones that would fail the same way
+     * again, like a duplicate key, are dropped. An ordered batch stops at the first error so
+     * everything after it goes again too, unordered ones tried everything.
+     */
+    static <T> List<T> remainingAfter(List<T> sent, List<BulkWriteError> errors, boolean ordered) {
+        Set<Integer> retry = new HashSet<>();
+        int first = sent.size();
+        for (BulkWriteError error : errors) {
+            first = Math.min(first, error.getIndex());
+            if (ErrorClass.retryable(error.getCode())) {
+                retry.add(error.getIndex());
+            }
+        }
+        List<T> remaining = new ArrayList<>();
+        for (int i = 0; i < sent.size(); i++) {
+            if (retry.contains(i) || (ordered && i > first)) {
+                remaining.add(sent.get(i));
+            }
+        }
+        return remaining;
+    }
 
+    static String retryReason(MongoException e) {
+        return e.getCode() > 0 ? String.valueOf(e.getCode()) : e.getClass().getSimpleName();
+    }
+
+    /**
+     * After a write we got no answer for, look up which of its inserts made it in one query
+     * and leave them out, rather than resending them and going round once per duplicate.
+     */
+    private static <T> List<WriteModel<T>> dropExistingInserts(MongoCollection<T> target, int workerID,
+                                                               List<WriteModel<T>> models) {
+        List<Document> ids = insertIds(models, workerID);
+        if (ids.isEmpty()) {
+            return models;
+        }
+        Set<Integer> existing = new HashSet<>();
+        try {
+            for (Document d : target.find(new Document("_id", new Document("$in", ids)), Document.class)
+                    .projection(include("_id"))) {
+                existing.add(((Document) d.get("_id")).getInteger("i"));
+            }
+        } catch (MongoException e) {
+            // Still down - send it all and sort it out next time
+            return models;
+        }
+        return withoutInserts(models, existing);
+    }
+
+    /**
+     * @return the _ids of the inserts among models
+     */
+    static List<Document> insertIds(List<? extends WriteModel<?>> models, int workerID) {
+        List<Document> ids = new ArrayList<>();
+        for (WriteModel<?> model : models) {
+            if (model instanceof InsertOneModel) {
+                ids.add(new Document("w", workerID).append("i", insertSequence((InsertOneModel<?>) model)));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @param existing sequence numbers of inserts that are already there
+     */
+    static <T> List<WriteModel<T>> withoutInserts(List<WriteModel<T>> models, Set<Integer> existing) {
+        if (existing.isEmpty()) {
+            return models;
+        }
+        List<WriteModel<T>> remaining = new ArrayList<>(models.size());
+        for (WriteModel<T> model : models) {
+            if (!(model instanceof InsertOneModel && existing.contains(insertSequence((InsertOneModel<?>) model)))) {
+                remaining.add(model);
+            }
+        }
+        return remaining;
+    }
+
+    private static int insertSequence(InsertOneModel<?> model) {
+        Object doc = model.getDocument();
+        return doc instanceof RawBsonDocument
+                ? ((RawBsonDocument) doc).getDocument("_id").getInt32("i").getValue()
+                : ((Document) ((Document) doc).get("_id")).getInteger("i");
     }
 
     private Document simpleKeyQuery() {
         // Key Query
         rotateCollection();
         Document query = new Document();
-        int range = sequence * testOpts.workingset / 100;
-        int rest = sequence - range;
-
-        int recordno = rest + getNextVal(range);
+        int recordno = workingSetKey();
 
         query.append("_id", new Document("w", workerID).append("i", recordno));
-        Date starttime = new Date();
+        long starttime = System.nanoTime();
         Document myDoc;
         List<String> projFields = new ArrayList<>(testOpts.numFields);
 
-        if (testOpts.projectFields == 0) {
-            myDoc = coll.find(query).first();
-        } else {
-            int numProjFields = Math.min(testOpts.projectFields, testOpts.numFields);
-            int i = 0;
-            while (i < numProjFields) {
-                projFields.add("fld" + i);
-                i++;
+        testResults.RecordOpsInFlight(OpType.KEYQUERIES, 1);
+        try {
+            if (testOpts.projectFields == 0) {
+                myDoc = readColl(keyQueryColls, OpType.KEYQUERIES).find(query).first();
+            } else {
+                int numProjFields = Math.min(testOpts.projectFields, testOpts.numFields);
+                int i = 0;
+                while (i < numProjFields) {
+                    projFields.add("fld" + i);
+                    i++;
+                }
+                myDoc = readColl(keyQueryColls, OpType.KEYQUERIES).find(query).projection(fields(include(projFields))).first();
             }
-            myDoc = coll.find(query).projection(fields(include(projFields))).first();
+        } catch (RuntimeException e) {
+            testResults.RecordErrors(OpType.KEYQUERIES, e, 1);
+            throw e;
+        } finally {
+            testResults.RecordOpsInFlight(OpType.KEYQUERIES, -1);
         }
 
+        testResults.RecordSuccess(starttime);
         if (myDoc != null) {
 
-            Date endtime = new Date();
-            Long taken = endtime.getTime() - starttime.getTime();
-            recordSlowOps("keyqueries", taken, 1);
-            testResults.RecordOpsDone("keyqueries", 1);
+            long taken = System.nanoTime() - starttime;
+            recordLatency(OpType.KEYQUERIES, taken, 1);
+            testResults.RecordOpsDone(OpType.KEYQUERIES, 1);
         }
         return myDoc;
     }
@@ -349,10 +662,7 @@ public class MongoWorker implements Runnable {
         // Key Query
         rotateCollection();
         Document query = new Document();
-        int range = sequence * testOpts.workingset / 100;
-        int rest = sequence - range;
-
-        int recordno = rest + getNextVal(range);
+        int recordno = workingSetKey();
 
         query.append("_id", new Document("w", workerID).append("i", recordno));
 
@@ -364,45 +674,67 @@ public class MongoWorker implements Runnable {
         rotateCollection();
         Document query = new Document();
         List<String> projFields = new ArrayList<>(testOpts.numFields);
-        int recordno = getNextVal(sequence);
+        int recordno = tail + getNextVal(sequence - tail);
         query.append("_id", new Document("$gt", new Document("w", workerID).append("i", recordno)));
-        Date starttime = new Date();
+        long starttime = System.nanoTime();
         MongoCursor<Document> cursor;
-        if (testOpts.projectFields == 0) {
-            cursor = coll.find(query).limit(testOpts.rangeDocs).iterator();
-        } else {
-            int numProjFields = Math.min(testOpts.projectFields, testOpts.numFields);
-            int i = 0;
-            while (i < numProjFields) {
-                projFields.add("fld" + i);
-                i++;
+        testResults.RecordOpsInFlight(OpType.RANGEQUERIES, 1);
+        try {
+            if (testOpts.projectFields == 0) {
+                cursor = readColl(rangeQueryColls, OpType.RANGEQUERIES).find(query).limit(testOpts.rangeDocs).iterator();
+            } else {
+                int numProjFields = Math.min(testOpts.projectFields, testOpts.numFields);
+                int i = 0;
+                while (i < numProjFields) {
+                    projFields.add("fld" + i);
+                    i++;
+                }
+                cursor = readColl(rangeQueryColls, OpType.RANGEQUERIES).find(query)
+                        .projection(fields(include(projFields))).limit(testOpts.rangeDocs).iterator();
             }
-            cursor = coll.find(query).projection(fields(include(projFields))).limit(testOpts.rangeDocs).iterator();
-        }
-        while (cursor.hasNext()) {
+            while (cursor.hasNext()) {
 
-            @SuppressWarnings("unused")
-            Document obj = cursor.next();
+                @SuppressWarnings("unused")
+                Document obj = cursor.next();
+            }
+            cursor.close();
+        } catch (RuntimeException e) {
+            testResults.RecordErrors(OpType.RANGEQUERIES, e, 1);
+            throw e;
+        } finally {
+            testResults.RecordOpsInFlight(OpType.RANGEQUERIES, -1);
         }
-        cursor.close();
 
-        Date endtime = new Date();
-        Long taken = endtime.getTime() - starttime.getTime();
-        recordSlowOps("rangequeries", taken, 1);
-        testResults.RecordOpsDone("rangequeries", 1);
+        testResults.RecordSuccess(starttime);
+        long taken = System.nanoTime() - starttime;
+        recordLatency(OpType.RANGEQUERIES, taken, 1);
+        testResults.RecordOpsDone(OpType.RANGEQUERIES, 1);
     }
 
-    private void recordSlowOps(String opname, Long taken, int count) {
+    /**
+     * @param takenNanos from System.nanoTime() - monotonic so a clock step can't corrupt it
+     */
+    private void recordLatency(OpType opname, long takenNanos, int count) {
+        recordLatency(opname, takenNanos, scheduleLagNanos, count);
+    }
 
-        for (int i = 0; testOpts.slowThresholds != null && testOpts.slowThresholds.length > i; i++) {
-            int slowThreshold = testOpts.slowThresholds[i];
-            if (taken > slowThreshold) {
-                // testResults.RecordSlowOp("inserts", icount, 50);
-                testResults.RecordSlowOp(opname, count, i);
-            }
+    /**
+     * @param lagNanos how late the op started against the open loop schedule
+     */
+    private void recordLatency(OpType opname, long takenNanos, long lagNanos, int count) {
+        // Slow op thresholds are worked out from the histogram when reporting
+        if (openLoop) {
+            // As a real client would see it - including any time we spent behind schedule
+            latencies.record(opname, takenNanos / 1000, (takenNanos + lagNanos) / 1000, count);
+        } else {
+            latencies.record(opname, takenNanos / 1000, count);
         }
     }
 
+    private MongoCollection<Document> readColl(Map<MongoCollection<Document>, MongoCollection<Document>> views, OpType op) {
+        return views.computeIfAbsent(coll, c -> testOpts.consistency.forRead(c, op));
+    }
+
     private void rotateCollection() {
         if (maxCollections > 1) {
             coll = colls.get(lastCollection);
@@ -421,12 +753,7 @@ public class MongoWorker implements Runnable {
         Document change;
 
         if (key == null) {
-            int range = sequence * testOpts.workingset / 100;
-            int rest = sequence - range;
-
-            int recordno = rest + getNextVal(range);
-
-            query.append("_id", new Document("w", workerID).append("i", recordno));
+            query.append("_id", new Document("w", workerID).append("i", workingSetKey()));
         } else {
             query.append("_id", key);
         }
@@ -446,9 +773,20 @@ public class MongoWorker implements Runnable {
         if (!testOpts.findandmodify) {
             bulkWriter.add(new UpdateManyModel<>(query, change));
         } else {
-            this.coll.findOneAndUpdate(query, change); // These are immediate not batches
+            findAndModify(query, change); // These are immediate not batches
+        }
+        testResults.RecordOpsDone(OpType.UPDATES, 1);
+    }
+
+    private void findAndModify(Document query, Document change) {
+        long starttime = System.nanoTime();
+        try {
+            coll.findOneAndUpdate(query, change);
+        } catch (RuntimeException e) {
+            testResults.RecordErrors(OpType.UPDATES, e, 1);
+            throw e;
         }
-        testResults.RecordOpsDone("updates", 1);
+        testResults.RecordSuccess(starttime);
     }
 
     private void incrementSingleRecord(List<WriteModel<Document>> bulkWriter, Document key) {
@@ -458,12 +796,7 @@ public class MongoWorker implements Runnable {
         Document change;
 
         if (key == null) {
-            int range = sequence * testOpts.workingset / 100;
-            int rest = sequence - range;
-
-            int recordno = rest + getNextVal(range);
-
-            query.append("_id", new Document("w", workerID).append("i", recordno));
+            query.append("_id", new Document("w", workerID).append("i", workingSetKey()));
         } else {
             query.append("_id", key);
         }
@@ -475,9 +808,45 @@ public class MongoWorker implements Runnable {
         if (!testOpts.findandmodify) {
             bulkWriter.add(new UpdateManyModel<>(query, change));
         } else {
-            this.coll.findOneAndUpdate(query, change); // These are immediate not batches
+            findAndModify(query, change); // These are immediate not batches
         }
-        testResults.RecordOpsDone("updates", 1);
+        testResults.RecordOpsDone(OpType.UPDATES, 1);
+    }
+
+    /**
+     * $inc one element of the nested arrays built by -a, an in place change that doesn't grow the document
+     */
+    private void arrayUpdate(List<WriteModel<Document>> bulkWriter) {
+        rotateCollection();
+        Document query = new Document("_id", new Document("w", workerID).append("i", workingSetKey()));
+        String element = "arr." + rng.nextInt(testOpts.arraytop) + "." + rng.nextInt(testOpts.arraynext);
+        bulkWriter.add(new UpdateOneModel<>(query, new Document("$inc", new Document(element, 1))));
+        pendingArrayUpdates++;
+        testResults.RecordOpsDone(OpType.ARRAYUPDATES, 1);
+    }
+
+    private void deleteSingleRecord(List<WriteModel<Document>> bulkWriter) {
+        rotateCollection();
+        Document query = new Document("_id", new Document("w", workerID).append("i", workingSetKey()));
+        bulkWriter.add(new DeleteOneModel<>(query));
+        pendingDeletes++;
+        testResults.RecordOpsDone(OpType.DELETES, 1);
+    }
+
+    /**
+     * Delete our oldest records, up to but not including upto
+     */
+    private boolean deleteOldest(List<WriteModel<Document>> bulkWriter, int upto) {
+        if (upto <= tail) {
+            return false;
+        }
+        Document range = new Document("$gte", new Document("w", workerID).append("i", tail));
+        range.append("$lt", new Document("w", workerID).append("i", upto));
+        bulkWriter.add(new DeleteManyModel<>(new Document("_id", range)));
+        tail = upto;
+        pendingRangeDeletes++;
+        testResults.RecordOpsDone(OpType.RANGEDELETES, 1);
+        return true;
     }
 
     private TestRecord createNewRecord() {
@@ -488,145 +857,198 @@ public class MongoWorker implements Runnable {
                 testOpts.NUMBER_SIZE, arr, testOpts.blobSize, testOpts.locationCodes);
     }
 
-    private TestRecord insertNewRecord(List<WriteModel<Document>> bulkWriter) {
-        TestRecord tr = createNewRecord();
-        bulkWriter.add(new InsertOneModel<>(tr.internalDoc));
-        return tr;
+    /**
+     * @return the _id of the record added to the batch
+     */
+    private Document insertNewRecord(List<WriteModel<Document>> bulkWriter) throws InterruptedException {
+        if (rawTemplate != null) {
+            int i = sequence++;
+            rawInserts.add(new InsertOneModel<>(rawTemplate.newRecord(workerID, i)));
+            return new Document("w", workerID).append("i", i);
+        }
+        Document doc;
+        if (docPool != null) {
+            doc = docPool.take(workerID, sequence++);
+        } else {
+            doc = createNewRecord().internalDoc;
+        }
+        bulkWriter.add(new InsertOneModel<>(doc));
+        return (Document) doc.get("_id");
     }
 
     public void run() {
         // Use a bulk inserter - even if ony for one
         List<WriteModel<Document>> bulkWriter;
+        // Until then sequence and tail count ops that never got sent
+        boolean sentAll = false;
 
+        testResults.WorkerStarted();
         try {
             bulkWriter = new ArrayList<>();
             int bulkops = 0;
 
             int c = 0;
+            // In a row, to back off while the cluster is unavailable
+            int failures = 0;
             logger.debug("Worker thread {} Started.", workerID);
-            while (testResults.GetSecondsElapsed() < testOpts.duration) {
-                c++;
-                // Timer isn't granullar enough to sleep for each
-                if (testOpts.opsPerSecond > 0) {
-                    double threads = testOpts.numThreads;
-                    double opsperthreadsecond = testOpts.opsPerSecond / threads;
-                    double sleeptimems = 1000 / opsperthreadsecond;
-
-                    if (c == 1) {
-                        // First time randomise
-
-                        Random r = new Random();
-                        sleeptimems = r.nextInt((int) Math.floor(sleeptimems));
-
-                    }
-                    Thread.sleep((int) Math.floor(sleeptimems));
-                }
-                if (!workflowed) {
-                    logger.debug("Random op");
-                    // Choose the type of op
-                    int allops = testOpts.insertops + testOpts.keyqueries + testOpts.updates + testOpts.rangequeries
-                            + testOpts.arrayupdates;
-
-                    /*
-                     * Change - no longer a ratio of operations, that wasn't helpful as a 50:50
-                     * split would be limited to the speed of the slower operation now a ratio of
-                     * TIME - 50% of the time it will start an operation of type X
-                     */
-
-                    int randop = getNextVal(allops);
-
-                    if (randop < testOpts.insertops) {
-                        insertNewRecord(bulkWriter);
-                        bulkops++;
-                    } else if (randop < testOpts.insertops + testOpts.keyqueries) {
-                        simpleKeyQuery();
-                    } else if (randop < testOpts.insertops + testOpts.keyqueries + testOpts.rangequeries) {
-                        rangeQuery();
-                    } else {
-                        // An in place single field update
-                        // fld 0 - set to random number
-                        updateSingleRecord(bulkWriter);
-                        if (!testOpts.findandmodify)
-                            bulkops++;
+            while (!testResults.StopRequested() && testResults.GetSecondsElapsed() < testOpts.duration) {
+                try {
+                    c++;
+                    if (rateLimiter != null) {
+                        scheduleLagNanos = System.nanoTime() - rateLimiter.acquire();
                     }
-                } else {
-                    // Following a preset workflow
-                    String wfop = workflow.substring(workflowStep, workflowStep + 1);
-
-                    logger.debug("Executing workflow op [{}] {}", workflow, wfop);
-                    switch (wfop) {
-                        case "i": {
-                            // Insert a new record, push it's key onto our stack
-                            TestRecord r = insertNewRecord(bulkWriter);
-                            keyStack.add((Document) r.internalDoc.get("_id"));
-                            bulkops++;
-                            logger.debug("Insert");
-                            break;
+                    if (!workflowed) {
+                        logger.debug("Random op");
+                        if (testOpts.loadProfile != null && testOpts.loadProfile.currentMix() != profileMix) {
+                            profileMix = testOpts.loadProfile.currentMix();
+                            opScheduler = OpScheduler.forOptions(testOpts, profileMix != null ? profileMix : weights, rng);
                         }
-                        case "u":
-                            if (!keyStack.isEmpty()) {
-                                updateSingleRecord(bulkWriter, keyStack.get(keyStack.size() - 1));
-                                logger.debug("Update");
-                                if (!testOpts.findandmodify)
+                        /*
+                         * Change - no longer a ratio of operations, that wasn't helpful as a 50:50
+                         * split would be limited to the speed of the slower operation now a ratio of
+                         * TIME - 50% of the time it will start an operation of type X
+                         */
+                        switch (opScheduler.nextOp()) {
+                            case OP_INSERT:
+                                insertNewRecord(bulkWriter);
+                                bulkops++;
+                                break;
+                            case OP_KEYQUERY:
+                                simpleKeyQuery();
+                                break;
+                            case OP_RANGEQUERY:
+                                rangeQuery();
+                                break;
+                            case OP_ARRAYUPDATE:
+                                arrayUpdate(bulkWriter);
+                                bulkops++;
+                                break;
+                            case OP_DELETE:
+                                deleteSingleRecord(bulkWriter);
+                                bulkops++;
+                                break;
+                            case OP_RANGEDELETE:
+                                if (deleteOldest(bulkWriter, Math.min(tail + testOpts.rangeDocs, sequence)))
                                     bulkops++;
-                            }
-                            break;
-                        case "I":
-                            if (!keyStack.isEmpty()) {
-                                incrementSingleRecord(bulkWriter, keyStack.get(keyStack.size() - 1));
-                                logger.debug("Increment");
+                                break;
+                            default:
+                                // An in place single field update
+                                // fld 0 - set to random number
+                                updateSingleRecord(bulkWriter);
                                 if (!testOpts.findandmodify)
                                     bulkops++;
+                        }
+                    } else {
+                        // Following a preset workflow
+                        String wfop = workflow.substring(workflowStep, workflowStep + 1);
+
+                        logger.debug("Executing workflow op [{}] {}", workflow, wfop);
+                        switch (wfop) {
+                            case "i": {
+                                // Insert a new record, push it's key onto our stack
+                                keyStack.add(insertNewRecord(bulkWriter));
+                                bulkops++;
+                                logger.debug("Insert");
+                                break;
                             }
-                            break;
-                        case "p":
-                            // Pop the top thing off the stack
-                            if (!keyStack.isEmpty()) {
-                                keyStack.remove(keyStack.size() - 1);
+                            case "u":
+                                if (!keyStack.isEmpty()) {
+                                    updateSingleRecord(bulkWriter, keyStack.get(keyStack.size() - 1));
+                                    logger.debug("Update");
+                                    if (!testOpts.findandmodify)
+                                        bulkops++;
+                                }
+                                break;
+                            case "I":
+                                if (!keyStack.isEmpty()) {
+                                    incrementSingleRecord(bulkWriter, keyStack.get(keyStack.size() - 1));
+                                    logger.debug("Increment");
+                                    if (!testOpts.findandmodify)
+                                        bulkops++;
+                                }
+                                break;
+                            case "p":
+                                // Pop the top thing off the stack
+                                if (!keyStack.isEmpty()) {
+                                    keyStack.remove(keyStack.size() - 1);
+                                }
+                                break;
+                            case "k": {
+                                // Find a new record and put it on the stack
+                                Document r = simpleKeyQuery();
+                                if (r != null) {
+                                    keyStack.add((Document) r.get("_id"));
+                                }
+                                break;
                             }
-                            break;
-                        case "k": {
-                            // Find a new record and put it on the stack
-                            Document r = simpleKeyQuery();
-                            if (r != null) {
+                            case "K": {
+                                // Get a new _id but don't read the doc and put it on the stack
+                                Document r = simpleGetKey();
                                 keyStack.add((Document) r.get("_id"));
+                                break;
                             }
-                            break;
-                        }
-                        case "K": {
-                            // Get a new _id but don't read the doc and put it on the stack
-                            Document r = simpleGetKey();
-                            keyStack.add((Document) r.get("_id"));
-                            break;
                         }
-                    }
 
-                    // If we have reached the end of the wfops then reset
-                    workflowStep++;
-                    if (workflowStep >= workflow.length()) {
-                        workflowStep = 0;
-                        keyStack = new ArrayList<>();
+                        // If we have reached the end of the wfops then reset
+                        workflowStep++;
+                        if (workflowStep >= workflow.length()) {
+                            workflowStep = 0;
+                            keyStack = new ArrayList<>();
+                        }
                     }
-                }
 
-                if (c % testOpts.batchSize == 0) {
-                    if (bulkops > 0) {
-                        flushBulkOps(bulkWriter);
-                        bulkWriter.clear();
-                        bulkops = 0;
-                        // Check and see if we need to rejig sharding
-                        if (numShards != testOpts.numShards) {
-                            ReviewShards();
+                    if (c % testOpts.batchSize == 0) {
+                        // Sliding window - whatever we inserted, the same number go from the tail
+                        if (windowSize > 0 && deleteOldest(bulkWriter, sequence - windowSize))
+                            bulkops++;
+                        if (bulkops > 0) {
+                            try {
+                                flushBulkOps(bulkWriter);
+                            } finally {
+                                // The last one may still be on the wire, or failed and been counted
+                                bulkWriter = new ArrayList<>();
+                                bulkops = 0;
+                            }
+                            // Check and see if we need to rejig sharding
+                            if (numShards != testOpts.numShards) {
+                                ReviewShards();
+                            }
                         }
                     }
+                    failures = 0;
+                } catch (RuntimeException e) {
+                    // Already counted against the op, keep going so a failover doesn't cost us threads
+                    logger.warn("Error: {}", e.getMessage());
+                    if (testOpts.debug)
+                        e.printStackTrace();
+                    Thread.sleep(Math.min(10L << Math.min(failures++, 10), 1000));
                 }
-
             }
-
+            if (bulkops > 0) {
+                flushBulkOps(bulkWriter);
+            }
+            sentAll = true;
         } catch (Exception e) {
             logger.warn("Error: {}", e.getMessage());
             if (testOpts.debug)
                 e.printStackTrace();
+        } finally {
+            try {
+                pipeline.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (positions != null && sentAll) {
+                positions.put(positionKey(), new int[]{sequence, deleting ? tail : -1, numShards});
+            } else if (positions != null) {
+                // The next phase will have to look
+                positions.remove(positionKey());
+            }
+            testResults.WorkerFinished();
         }
     }
+
+    private String positionKey() {
+        return testOpts.databaseName + "." + testOpts.collectionName + ":" + workerID;
+    }
 }
@@ -0,0 +1,197 @@
+package com.johnlpage.pocdriver;
+
+import com.mongodb.ReadConcern;
+import com.mongodb.ReadConcernLevel;
+import com.mongodb.ReadPreference;
+import com.mongodb.Tag;
+import com.mongodb.TagSet;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoCollection;
+import org.apache.commons.cli.ParseException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * --readpref, --readconcern and --writeconcern. Reads can be set for all queries at once,
+ * "secondaryPreferred", or for key and range queries separately by the letter of their
+ * ratio flag, "k=nearest(dc=east)(dc=west);r=secondary". Each bracketed tag set is tried in
+ * turn, () matches any member. Anything left unset uses whatever the connection string says.
+ */
+public class OpConsistency {
+    private static final String[] READ_KEYS = {"k", "r"};
+    private static final OpType[] READ_OPS = {OpType.KEYQUERIES, OpType.RANGEQUERIES};
+    private static final Pattern PER_OP = Pattern.compile("([kr])=(.*)");
+    private static final Pattern TAG_SET = Pattern.compile("\\(([^)]*)\\)");
+
+    // Indexed by OpType.ordinal(), null for the client default
+    private final ReadPreference[] readPreference = new ReadPreference[OpType.ALL.length];
+    private final ReadConcern[] readConcern = new ReadConcern[OpType.ALL.length];
+    private WriteConcern writeConcern;
+
+    /**
+     * @param readPref     --readpref or null
+     * @param readConcern  --readconcern or null
+     * @param writeConcern --writeconcern or null
+     */
+    static OpConsistency parse(String readPref, String readConcern, String writeConcern) throws ParseException {
+        OpConsistency c = new OpConsistency();
+        if (readPref != null) {
+            for (String[] opValue : perOp(readPref)) {
+                ReadPreference p = parseReadPreference(opValue[1]);
+                for (OpType o : readOps(opValue[0])) {
+                    c.readPreference[o.ordinal()] = p;
+                }
+            }
+        }
+        if (readConcern != null) {
+            for (String[] opValue : perOp(readConcern)) {
+                ReadConcern rc;
+                try {
+                    rc = new ReadConcern(ReadConcernLevel.fromString(opValue[1]));
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException("Bad read concern " + opValue[1]
+                            + " - use local, available, majority, linearizable or snapshot");
+                }
+                for (OpType o : readOps(opValue[0])) {
+                    c.readConcern[o.ordinal()] = rc;
+                }
+            }
+        }
+        if (writeConcern != null) {
+            c.writeConcern = parseWriteConcern(writeConcern);
+        }
+        return c;
+    }
+
+    // {op letter or null for both, value}
+    private static List<String[]> perOp(String spec) {
+        List<String[]> rval = new ArrayList<>();
+        for (String item : spec.split(";")) {
+            item = item.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+            Matcher m = PER_OP.matcher(item);
+            rval.add(m.matches() ? new String[]{m.group(1), m.group(2).trim()} : new String[]{null, item});
+        }
+        return rval;
+    }
+
+    private static List<OpType> readOps(String key) {
+        List<OpType> rval = new ArrayList<>();
+        for (int i = 0; i < READ_KEYS.length; i++) {
+            if (key == null || key.equals(READ_KEYS[i])) {
+                rval.add(READ_OPS[i]);
+            }
+        }
+        return rval;
+    }
+
+    static ReadPreference parseReadPreference(String spec) throws ParseException {
+        int bracket = spec.indexOf('(');
+        String mode = (bracket < 0 ? spec : spec.substring(0, bracket)).trim();
+        List<TagSet> tagSets = new ArrayList<>();
+        if (bracket >= 0) {
+            String rest = spec.substring(bracket);
+            Matcher m = TAG_SET.matcher(rest);
+            int end = 0;
+            while (m.find() && m.start() == end) {
+                List<Tag> tags = new ArrayList<>();
+                for (String tag : m.group(1).split(",")) {
+                    if (tag.trim().isEmpty()) {
+                        continue;
+                    }
+                    String[] kv = tag.split("=", 2);
+                    if (kv.length != 2) {
+                        throw new ParseException("Bad tag " + tag + " in read preference " + spec + " - use name=value");
+                    }
+                    tags.add(new Tag(kv[0].trim(), kv[1].trim()));
+                }
+                tagSets.add(new TagSet(tags));
+                end = m.end();
+            }
+            if (end != rest.length()) {
+                throw new ParseException("Bad tag sets in read preference " + spec);
+            }
+        }
+        try {
+            return ReadPreference.valueOf(mode, tagSets);
+        } catch (IllegalArgumentException e) {
+            throw new ParseException("Bad read preference " + spec + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * w[,j][,wtimeout=ms] - w is a number of members, majority or a custom write concern name
+     */
+    static WriteConcern parseWriteConcern(String spec) throws ParseException {
+        String[] parts = spec.split(",");
+        String w = parts[0].trim();
+        WriteConcern wc;
+        if (w.equals("0")) {
+            // Unacknowledged writes don't tell us how many went in
+            throw new ParseException("Write concern 0 is not supported, nothing could be counted");
+        } else if (w.matches("\\d+")) {
+            wc = new WriteConcern(Integer.parseInt(w));
+        } else if (!w.isEmpty()) {
+            wc = new WriteConcern(w);
+        } else {
+            throw new ParseException("Bad write concern " + spec);
+        }
+        for (int i = 1; i < parts.length; i++) {
+            String part = parts[i].trim();
+            if (part.equals("j")) {
+                wc = wc.withJournal(true);
+            } else if (part.startsWith("wtimeout=")) {
+                try {
+                    wc = wc.withWTimeout(Long.parseLong(part.substring(9)), TimeUnit.MILLISECONDS);
+                } catch (NumberFormatException e) {
+                    throw new ParseException("Bad wtimeout in write concern " + spec);
+                }
+            } else {
+                throw new ParseException("Bad write concern " + spec + " - use w[,j][,wtimeout=ms]");
+            }
+        }
+        return wc;
+    }
+
+    ReadPreference readPreference(OpType op) {
+        return readPreference[op.ordinal()];
+    }
+
+    ReadConcern readConcern(OpType op) {
+        return readConcern[op.ordinal()];
+    }
+
+    WriteConcern writeConcern() {
+        return writeConcern;
+    }
+
+    /**
+     * @return coll as reads of this type should see it
+     */
+    <T> MongoCollection<T> forRead(MongoCollection<T> coll, OpType op) {
+        if (readPreference[op.ordinal()] != null) {
+            coll = coll.withReadPreference(readPreference[op.ordinal()]);
+        }
+        if (readConcern[op.ordinal()] != null) {
+            coll = coll.withReadConcern(readConcern[op.ordinal()]);
+        }
+        return coll;
+    }
+
+    <T> com.mongodb.reactivestreams.client.MongoCollection<T> forRead(
+            com.mongodb.reactivestreams.client.MongoCollection<T> coll, OpType op) {
+        if (readPreference[op.ordinal()] != null) {
+            coll = coll.withReadPreference(readPreference[op.ordinal()]);
+        }
+        if (readConcern[op.ordinal()] != null) {
+            coll = coll.withReadConcern(readConcern[op.ordinal()]);
+        }
+        return coll;
+    }
+}
@@ -0,0 +1,31 @@
+package com.johnlpage.pocdriver;
+
+import java.util.Random;
+
+/**
+ * Chooses which type of op a worker does next, each worker has its own.
+ * Weights are the -i/-k/-r/-u style values, the returned op is an index into them.
+ */
+public interface OpScheduler {
+
+    // What to do when every weight is zero - updates, which come fourth in both workers'
+    // weights and are there whatever other options are given
+    int NO_WEIGHTS_OP = 3;
+
+    int nextOp();
+
+    static int noWeightsOp(int ops) {
+        return Math.min(NO_WEIGHTS_OP, ops - 1);
+    }
+
+    /**
+     * By default a weight is the number of milliseconds in each cycle spent on that op,
+     * --opsratio (and --zipfian) use it as a straight ratio of op counts instead.
+     */
+    static OpScheduler forOptions(POCTestOptions testOpts, int[] weights, Random rng) {
+        if (testOpts.opsratio || testOpts.zipfian) {
+            return new RatioOpScheduler(weights, rng.nextLong());
+        }
+        return new TimeSliceOpScheduler(weights, rng);
+    }
+}
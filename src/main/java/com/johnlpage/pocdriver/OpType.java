@@ -0,0 +1,30 @@
+package com.johnlpage.pocdriver;
+
+/**
+ * The kinds of op we count and time. Workers pass these rather than names so
+ * recording an op is an array index, no String hashing per op.
+ */
+public enum OpType {
+    INSERTS("inserts"),
+    KEYQUERIES("keyqueries"),
+    UPDATES("updates"),
+    RANGEQUERIES("rangequeries"),
+    DELETES("deletes"),
+    RANGEDELETES("rangedeletes"),
+    ARRAYUPDATES("arrayupdates");
+
+    // values() copies the array every call
+    static final OpType[] ALL = values();
+
+    private final String label;
+
+    OpType(String label) {
+        this.label = label;
+    }
+
+    // As it appears in the reports
+    @Override
+    public String toString() {
+        return label;
+    }
+}
@@ -5,10 +5,6 @@ import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
 import org.apache.commons.cli.ParseException;
-import org.bson.BsonBinaryWriter;
-import org.bson.codecs.DocumentCodec;
-import org.bson.codecs.EncoderContext;
-import org.bson.io.BasicOutputBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,6 +15,7 @@ public class POCDriver {
     public static void main(String[] args) {
 
         POCTestOptions testOpts;
+        Scenario scenario = null;
         LogManager.getLogManager().reset();
         Logger logger = LoggerFactory.getLogger(POCDriver.class);
 
@@ -30,8 +27,15 @@ public class POCDriver {
                 return;
             }
 
-            if (testOpts.arrayupdates > 0 && (testOpts.arraytop < 1 || testOpts.arraynext < 1)) {
-                logger.error("You must specify an array size to update arrays");
+            if (testOpts.scenarioFile != null) {
+                scenario = Scenario.load(testOpts.scenarioFile, args);
+                for (Scenario.Phase phase : scenario.phases) {
+                    if (!checkOptions(phase.testOpts, logger)) {
+                        logger.error("In phase '{}'", phase.name);
+                        return;
+                    }
+                }
+            } else if (!checkOptions(testOpts, logger)) {
                 return;
             }
             if (testOpts.printOnly) {
@@ -44,9 +48,74 @@ public class POCDriver {
             return;
         }
 
+        if (scenario != null) {
+            scenario.run();
+            return;
+        }
+
         POCTestResults testResults = new POCTestResults(testOpts);
         LoadRunner runner = new LoadRunner(testOpts);
         runner.RunLoad(testOpts, testResults);
+        runner.Close();
+    }
+
+    /**
+     * @return false, having said why, if these options can't be run together
+     */
+    private static boolean checkOptions(POCTestOptions testOpts, Logger logger) {
+        LoadProfile profile = testOpts.loadProfile;
+        if (profile != null && testOpts.sloMs > 0) {
+            logger.error("Use either --profile or --slo, not both");
+            return false;
+        }
+        if (profile != null && profile.hasMix() && testOpts.workflow != null) {
+            logger.error("A --profile with an op mix does not support workflows");
+            return false;
+        }
+        if ((testOpts.arrayupdates > 0 || (profile != null && profile.uses("g")))
+                && (testOpts.arraytop < 1 || testOpts.arraynext < 1)) {
+            logger.error("You must specify an array size to update arrays");
+            return false;
+        }
+        if (testOpts.async && (testOpts.workflow != null || testOpts.numcollections > 1
+                || testOpts.findandmodify || testOpts.opsPerSecond > 0 || testOpts.rawBson)) {
+            logger.error("The async engine does not support workflows, multiple collections, findAndModify, -q or --rawbson");
+            return false;
+        }
+        if (testOpts.sloMs > 0 && testOpts.workflow != null) {
+            // A workflow is several ops per scheduled start so the rate would be wrong
+            logger.error("--slo does not support workflows");
+            return false;
+        }
+        boolean deleting = testOpts.deletes > 0 || testOpts.rangedeletes > 0 || testOpts.windowSize > 0
+                || (profile != null && (profile.uses("D") || profile.uses("rangedeletes")));
+        if (testOpts.async && deleting) {
+            logger.error("The async engine does not support deletes");
+            return false;
+        }
+        if (deleting && testOpts.numcollections > 1) {
+            logger.error("Deletes need a single collection");
+            return false;
+        }
+        if (testOpts.loadDocs > 0 && (testOpts.async || testOpts.opsPerSecond > 0)) {
+            logger.error("--loaddocs loads as fast as it can with the sync driver, not with -q or the async engine");
+            return false;
+        }
+        if (testOpts.virtualThreads && (testOpts.loadDocs > 0 || testOpts.async)) {
+            // Both run on a fixed pool of platform threads
+            logger.error("--virtualthreads only applies to the sync workers, not --loaddocs or the async engine");
+            return false;
+        }
+        if (testOpts.virtualThreads && testOpts.batchesInFlight > 1) {
+            // Each worker's batches would need platform threads of their own
+            logger.error("--batchesinflight does not support --virtualthreads, raise -t instead");
+            return false;
+        }
+        if (testOpts.rawBson && testOpts.docPoolSize > 0) {
+            logger.error("Use either --rawbson or --docpool, not both");
+            return false;
+        }
+        return true;
     }
 
     private static void printTestDocument(final POCTestOptions testOpts) {
@@ -67,11 +136,7 @@ public class POCDriver {
         //This is actual output not logging 
         System.out.println(newJson);
 
-        //Thanks to Ross Lawley for this bit of black magic
-        BasicOutputBuffer buffer = new BasicOutputBuffer();
-        BsonBinaryWriter binaryWriter = new BsonBinaryWriter(buffer);
-        new DocumentCodec().encode(binaryWriter, tr.internalDoc, EncoderContext.builder().build());
-        int length = binaryWriter.getBsonOutput().getSize();
+        int length = tr.toBson().length;
 
         System.out.printf("Documents are %.2f KB each as BSON%n", (float) length / 1024);
     }
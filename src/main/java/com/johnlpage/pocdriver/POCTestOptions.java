@@ -13,18 +13,57 @@ public class POCTestOptions {
     int depth = 0;
     int textFieldLen = 30;
     int numThreads = 4;
+    /**
+     * Run each worker on its own virtual thread (needs Java 21) rather than a fixed pool
+     */
+    boolean virtualThreads = false;
+    /**
+     * Use the reactive streams driver, keeping asyncInFlight ops outstanding per worker
+     */
+    boolean async = false;
+    int asyncInFlight = 16;
+    /**
+     * Size of the pool of pre-built insert documents, 0 to build them in the workers
+     */
+    int docPoolSize = 0;
+    int docPoolGenerators = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    /**
+     * Build inserts by patching a pre-encoded BSON template rather than from Documents
+     */
+    boolean rawBson = false;
     int threadIdStart = 0;
     int reportTime = 10;
     int[] slowThresholds = new int[]{50};  // default to 50
     int insertops = 100;
-    int opsPerSecond = 0;
+    // Volatile as the tuner changes it mid-run, the workers follow the RateLimiter
+    volatile int opsPerSecond = 0;
     int keyqueries = 0;
     int arrayupdates = 0;
     int updates = 0;
     int rangequeries = 0;
+    int deletes = 0;
+    int rangedeletes = 0;
+    /**
+     * Hold the collection at about this many documents by deleting the oldest, 0 to let it grow
+     */
+    int windowSize = 0;
     int duration = 18000;
+    // Stop once the collection has about this many documents, 0 to run for the duration
+    long targetDocs = 0;
+    // Insert exactly this many documents split over the threads then stop, 0 for a normal run
+    long loadDocs = 0;
+    // Bulk writes each thread can have on the wire at once
+    int batchesInFlight = 1;
+    // JSON file of phases to run one after the other
+    String scenarioFile = null;
     int numShards = 1;
     String logfile = null;
+    // -o as JSON lines rather than CSV
+    boolean jsonLog = false;
+    // Serve live metrics over HTTP on this port, 0 for off
+    int metricsPort = 0;
+    // Listen to the driver for server round trip times and connection pool use
+    boolean driverMetrics = false;
     boolean sharded = false;
     boolean singleserver = false;
     String databaseName = "POCDB";
@@ -41,6 +80,21 @@ public class POCTestOptions {
     int projectFields = 0;
     boolean orderedBatch = true;
     boolean opsratio = false;
+    /**
+     * With a rate limit, give every op an intended start time and measure latency from that
+     */
+    boolean openLoop = false;
+    /**
+     * Search for the highest -q that keeps p99 under this many ms, 0 for off
+     */
+    double sloMs = 0;
+    int tuneStep = 30;
+    // Rate and op mix over time from --profile, null for a steady -q
+    LoadProfile loadProfile = null;
+    // Read preference and read concern by op type, and the write concern
+    OpConsistency consistency = new OpConsistency();
+    // Milliseconds between staleness probes, 0 for off
+    int stalenessMs = 0;
     /**
      * Control whether we show full stacktraces on error
      */
@@ -52,7 +106,8 @@ public class POCTestOptions {
     boolean findandmodify = false;
     int workingset = 100;
     boolean helpOnly = false;
-    String connectionDetails = "mongodb://localhost:27017";
+    static final String DEFAULT_CONNECTION = "mongodb://localhost:27017";
+    String connectionDetails = DEFAULT_CONNECTION;
     boolean fulltext;
     String[] locationCodes = null;
     String[] defaultLocationCodes = new String[]{"AD", "AE", "AF", "AG", "AI", "AL", "AM", "AO", "AQ", "AR", "AS", "AT", "AU", "AU-ACT", "AU-NSW", "AU-NT", "AU-QLD", "AU-SA", "AU-TAS", "AU-VIC", "AU-WA", "AW", "AX", "AZ", "BA", "BB", "BD", "BE", "BE-BRU", "BE-VLG", "BE-WAL", "BF", "BG", "BH", "BI", "BJ", "BL", "BM", "BN", "BO", "BQ", "BR", "BR-AC", "BR-AL", "BR-AM", "BR-AP", "BR-BA", "BR-CE", "BR-DF", "BR-ES", "BR-GO", "BR-MA", "BR-MG", "BR-MS", "BR-MT", "BR-PA", "BR-PB", "BR-PE", "BR-PI", "BR-PR", "BR-RJ", "BR-RN", "BR-RO", "BR-RR", "BR-RS", "BR-SC", "BR-SE", "BR-SP", "BR-TO", "BS", "BT", "BV", "BW", "BY", "BZ", "CA", "CA-AB", "CA-BC", "CA-MB", "CA-NB", "CA-NL", "CA-NS", "CA-NT", "CA-NU", "CA-ON", "CA-PE", "CA-QC", "CA-SK", "CA-YT", "CC", "CD", "CF", "CG", "CH", "CI", "CK", "CL", "CM", "CN", "CN-11", "CN-12", "CN-13", "CN-14", "CN-15", "CN-21", "CN-22", "CN-23", "CN-31", "CN-32", "CN-33", "CN-34", "CN-35", "CN-36", "CN-37", "CN-41", "CN-42", "CN-43", "CN-44", "CN-45", "CN-46", "CN-50", "CN-51", "CN-52", "CN-53", "CN-54", "CN-61", "CN-62", "CN-63", "CN-64", "CN-65", "CO", "CR", "CU", "CV", "CW", "CX", "CY", "CZ", "DE", "DE-BB", "DE-BE", "DE-BW", "DE-BY", "DE-HB", "DE-HE", "DE-HH", "DE-MV", "DE-NI", "DE-NW", "DE-RP", "DE-SH", "DE-SL", "DE-SN", "DE-ST", "DE-TH", "DJ", "DK", "DM", "DO", "DZ", "EC", "EE", "EG", "EH", "ER", "ES", "ET", "FI", "FJ", "FK", "FM", "FO", "FR", "FR-ARA", "FR-BFC", "FR-E", "FR-F", "FR-GES", "FR-H", "FR-HDF", "FR-J", "FR-NAQ", "FR-NOR", "FR-OCC", "FR-R", "FR-U", "GA", "GB", "GB-ENG", "GB-NIR", "GB-SCT", "GB-WLS", "GD", "GE", "GF", "GG", "GH", "GI", "GL", "GM", "GN", "GP", "GQ", "GR", "GS", "GT", "GU", "GW", "GY", "HK", "HK-KKC", "HM", "HN", "HR", "HT", "HU", "ID", "IE", "IE-C", "IE-L", "IE-M", "IE-U", "IL", "IM", "IN", "IN-AN", "IN-AP", "IN-AR", "IN-AS", "IN-BR", "IN-CH", "IN-CT", "IN-DD", "IN-DL", "IN-DN", "IN-GA", "IN-GJ", "IN-HP", "IN-HR", "IN-JH", "IN-JK", "IN-KA", "IN-KL", "IN-LD", "IN-MH", "IN-ML", "IN-MN", "IN-MP", "IN-MZ", "IN-NL", "IN-OR", "IN-PB", "IN-PY", "IN-RJ", "IN-SK", "IN-TG", "IN-TN", "IN-TR", "IN-UL", "IN-UP", "IN-WB", "IO", "IQ", "IR", "IS", "IT", "JE", "JM", "JO", "JP", "JP-01", "JP-02", "JP-03", "JP-04", "JP-05", "JP-06", "JP-07", "JP-08", "JP-09", "JP-10", "JP-11", "JP-12", "JP-13", "JP-14", "JP-15", "JP-16", "JP-17", "JP-18", "JP-19", "JP-20", "JP-21", "JP-22", "JP-23", "JP-24", "JP-25", "JP-26", "JP-27", "JP-28", "JP-29", "JP-30", "JP-31", "JP-32", "JP-33", "JP-34", "JP-35", "JP-36", "JP-37", "JP-38", "JP-39", "JP-40", "JP-41", "JP-42", "JP-43", "JP-44", "JP-45", "JP-46", "JP-47", "KE", "KG", "KH", "KI", "KM", "KN", "KP", "KR", "KR-11", "KR-22", "KR-26", "KR-27", "KR-28", "KR-29", "KR-30", "KR-31", "KR-41", "KR-42", "KR-43", "KR-44", "KR-45", "KR-46", "KR-47", "KR-48", "KR-49", "KW", "KY", "KZ", "LA", "LB", "LC", "LI", "LK", "LR", "LS", "LT", "LU", "LV", "LY", "MA", "MC", "MD", "ME", "MF", "MG", "MH", "MK", "ML", "MM", "MN", "MO", "MP", "MQ", "MR", "MS", "MT", "MU", "MV", "MW", "MX", "MY", "MZ", "NA", "NC", "NE", "NF", "NG", "NI", "NL", "NL-DR", "NL-FL", "NL-FR", "NL-GE", "NL-GR", "NL-LI", "NL-NB", "NL-NH", "NL-OV", "NL-UT", "NL-ZE", "NL-ZH", "NO", "NP", "NR", "NU", "NZ", "OM", "PA", "PE", "PF", "PG", "PH", "PK", "PL", "PM", "PN", "PR", "PS", "PT", "PW", "PY", "QA", "RE", "RO", "RS", "RU", "RW", "SA", "SB", "SC", "SD", "SE", "SG", "SG-01", "SG-02", "SG-03", "SG-04", "SG-05", "SH", "SI", "SJ", "SK", "SL", "SM", "SN", "SO", "SR", "SS", "ST", "SV", "SX", "SY", "SZ", "TC", "TD", "TF", "TG", "TH", "TJ", "TK", "TL", "TM", "TN", "TO", "TR", "TT", "TV", "TW", "TW-CHA", "TW-CYI", "TW-CYQ", "TW-HSQ", "TW-HSZ", "TW-HUA", "TW-ILA", "TW-KEE", "TW-KHH", "TW-KIN", "TW-LIE", "TW-MIA", "TW-NAN", "TW-NWT", "TW-PEN", "TW-PIF", "TW-TAO", "TW-TNN", "TW-TPE", "TW-TTT", "TW-TXG", "TW-YUN", "TZ", "UA", "UG", "UM", "US", "US-AK", "US-AL", "US-AR", "US-AZ", "US-CA", "US-CO", "US-CT", "US-DC", "US-DE", "US-FL", "US-GA", "US-HI", "US-IA", "US-ID", "US-IL", "US-IN", "US-KS", "US-KY", "US-LA", "US-MA", "US-MD", "US-ME", "US-MI", "US-MN", "US-MO", "US-MS", "US-MT", "US-NC", "US-ND", "US-NE", "US-NH", "US-NJ", "US-NM", "US-NV", "US-NY", "US-OH", "US-OK", "US-OR", "US-PA", "US-RI", "US-SC", "US-SD", "US-TN", "US-TX", "US-UT", "US-VA", "US-VT", "US-WA", "US-WI", "US-WV", "US-WY", "UY", "UZ", "VA", "VC", "VE", "VG", "VI", "VN", "VU", "WF", "WS", "YE", "YT", "ZA", "ZM", "ZW"};
@@ -66,8 +121,13 @@ public class POCTestOptions {
         cliopt.addOption("a", "arrays", true, "Shape of any arrays in new sample documents x:y so -a 12:60 adds an array of 12 length 60 arrays of integers");
         cliopt.addOption("b", "bulksize", true, "Bulk op size (default 512)");
         cliopt.addOption("c", "host", true, "MongoDB connection details (default 'mongodb://localhost:27017' )");
+        cliopt.addOption("D", "deletes", true, "Ratio of delete by key operations (default 0)");
         cliopt.addOption("d", "duration", true, "Test duration in seconds, default 18,000");
         cliopt.addOption("e", "empty", false, "Remove data from collection on startup");
+        cliopt.addOption(null, "targetdocs", true, "Stop once the collection holds this many documents, or at the end of the duration (default off)");
+        cliopt.addOption(null, "loaddocs", true, "Load this many documents as fast as possible with unordered bulk inserts then stop, resuming any earlier load");
+        cliopt.addOption(null, "batchesinflight", true, "Bulk writes each thread keeps in flight while it builds the next (default 1)");
+        cliopt.addOption(null, "scenario", true, "Run the phases in this JSON file one after another, each with its own options and report");
         cliopt.addOption("f", "numfields", true, "Number of top level fields in test documents (default 10)");
         cliopt.addOption(null, "depth", true, "The depth of the document created (default 0)");
         cliopt.addOption("g", "arrayupdates", true, "Ratio of array increment ops requires option 'a' (default 0)");
@@ -79,8 +139,19 @@ public class POCTestOptions {
         cliopt.addOption("m", "findandmodify", false, "Use findAndModify instead of update and retrieve document (with -u or -v only)");
         cliopt.addOption("n", "namespace", true, "Namespace to use , for example myDatabase.myCollection");
         cliopt.addOption("o", "logfile", true, "Output stats to  <file> ");
+        cliopt.addOption(null, "metricsport", true, "Serve live metrics for Prometheus at http://<host>:<port>/metrics (default off)");
+        cliopt.addOption(null, "drivermetrics", false, "Report server round trip time and connection pool use from the driver's event listeners");
+        cliopt.addOption(null, "logformat", true, "Format of the -o file, csv or json (JSON lines) (default csv)");
         cliopt.addOption("p", "print", false, "Print out a sample document according to the other parameters then quit");
-        cliopt.addOption("q", "opsPerSecond", true, "Try to rate limit the total ops/s to the specified amount");
+        cliopt.addOption("q", "opsPerSecond", true, "Rate limit the total ops/s across all threads to the specified amount");
+        cliopt.addOption(null, "openloop", false, "With -q, schedule ops at fixed intervals and also report latency from the intended start time");
+        cliopt.addOption(null, "slo", true, "Search for the highest ops/s that keeps p99 latency under this many ms, starting from -q (default 1000), implies --openloop");
+        cliopt.addOption(null, "profile", true, "Vary the target ops/s, and optionally the op mix, over time from a profile file or inline spec, e.g. 'ramp 0 50000 10m; hold 50000 20m; spike 5x 30s'");
+        cliopt.addOption(null, "readpref", true, "Read preference for queries, for all of them or per op as k=<pref>;r=<pref>, with tag sets like nearest(dc=east)(dc=west) (default from -c)");
+        cliopt.addOption(null, "readconcern", true, "Read concern level for queries, for all of them or per op as k=<level>;r=<level> (default from -c)");
+        cliopt.addOption(null, "writeconcern", true, "Write concern for all writes as w[,j][,wtimeout=ms], e.g. majority,wtimeout=5000 (default from -c)");
+        cliopt.addOption(null, "staleness", true, "Every this many ms write a timestamp and time how long until key queries can see it (default 0, off)");
+        cliopt.addOption(null, "tunestep", true, "Seconds to hold each rate when searching with --slo (default 30)");
         cliopt.addOption("r", "rangequeries", true, "Ratio of range query operations (default 0)");
         cliopt.addOption("s", "slowthreshold", true, "Slow operation threshold in ms, use comma to separate multiple thresholds(default 50)");
         cliopt.addOption("t", "threads", true, "Number of threads (default 4)");
@@ -90,6 +161,14 @@ public class POCTestOptions {
         cliopt.addOption("x", "indexes", true, "Number of secondary indexes - does not remove existing (default 0)");
         cliopt.addOption("y", "collections", true, "Number of collections to span the workload over, implies w (default 1)");
         cliopt.addOption("z", "zipfian", true, "Enable zipfian distribution over X number of documents (default 0)");
+        cliopt.addOption(null, "rangedeletes", true, "Ratio of operations deleting each thread's oldest --rangedocs documents (default 0)");
+        cliopt.addOption(null, "window", true, "Keep the collection at about this many documents by deleting the oldest as new ones are inserted (default 0, off)");
+        cliopt.addOption(null, "virtualthreads", false, "Run each worker thread as a virtual thread, for very high -t (requires Java 21)");
+        cliopt.addOption(null, "engine", true, "Driver to use, sync or async (default sync)");
+        cliopt.addOption(null, "inflight", true, "Number of ops each worker keeps outstanding with --engine async (default 16)");
+        cliopt.addOption(null, "docpool", true, "Pre-build this many insert documents on background threads (default 0, off)");
+        cliopt.addOption(null, "generators", true, "Number of threads building documents for --docpool (default half the CPUs)");
+        cliopt.addOption(null, "rawbson", false, "Insert documents patched from a pre-encoded BSON template, strings keep a fixed length");
         cliopt.addOption(null, "threadIdStart", true, "Start 'workerId' for each thread. 'w' value in _id. (default 0)");
         cliopt.addOption(null, "fulltext", false, "Create fulltext index (default false)");
         cliopt.addOption(null, "binary", true, "Add a binary blob of size KB");
@@ -100,7 +179,7 @@ public class POCTestOptions {
 
         cliopt.addOption(null, "ordered", true, "Use ordered or unordered batches");
 
-        cliopt.addOption(null, "opratio", false, "Maintain a strict ratio of number of ops not time - legacy mode");
+        cliopt.addOption(null, "opsratio", false, "Maintain a strict ratio of number of ops not time - legacy mode");
         cliopt.addOption(null, "location", true, "Adds a location field in the payload ( agrs : comma,seperated,list,of,country,code,)");
 
 
@@ -119,6 +198,23 @@ public class POCTestOptions {
             opsPerSecond = Integer.parseInt(cmd.getOptionValue("q"));
         }
 
+        if (cmd.hasOption("openloop")) {
+            openLoop = true;
+        }
+
+        if (cmd.hasOption("slo")) {
+            sloMs = Double.parseDouble(cmd.getOptionValue("slo"));
+            if (opsPerSecond <= 0) {
+                opsPerSecond = 1000;
+            }
+            // Latency from the intended start is the only honest measure when pushing the rate
+            openLoop = true;
+        }
+
+        if (cmd.hasOption("tunestep")) {
+            tuneStep = Integer.parseInt(cmd.getOptionValue("tunestep"));
+        }
+
         if (cmd.hasOption("j")) {
             workingset = Integer.parseInt(cmd.getOptionValue("j"));
         }
@@ -173,6 +269,18 @@ public class POCTestOptions {
             arrayupdates = Integer.parseInt(cmd.getOptionValue("g"));
         }
 
+        if (cmd.hasOption("D")) {
+            deletes = Integer.parseInt(cmd.getOptionValue("D"));
+        }
+
+        if (cmd.hasOption("rangedeletes")) {
+            rangedeletes = Integer.parseInt(cmd.getOptionValue("rangedeletes"));
+        }
+
+        if (cmd.hasOption("window")) {
+            windowSize = Integer.parseInt(cmd.getOptionValue("window"));
+        }
+
         if (cmd.hasOption("u")) {
             updates = Integer.parseInt(cmd.getOptionValue("u"));
         }
@@ -197,6 +305,23 @@ public class POCTestOptions {
             logfile = cmd.getOptionValue("o");
         }
 
+        if (cmd.hasOption("drivermetrics")) {
+            driverMetrics = true;
+        }
+
+        if (cmd.hasOption("metricsport")) {
+            metricsPort = Integer.parseInt(cmd.getOptionValue("metricsport"));
+        }
+
+        if (cmd.hasOption("logformat")) {
+            String format = cmd.getOptionValue("logformat");
+            if (format.equalsIgnoreCase("json")) {
+                jsonLog = true;
+            } else if (!format.equalsIgnoreCase("csv")) {
+                throw new ParseException("logformat must be 'csv' or 'json'");
+            }
+        }
+
         if (cmd.hasOption("k")) {
             keyqueries = Integer.parseInt(cmd.getOptionValue("k"));
         }
@@ -247,6 +372,29 @@ public class POCTestOptions {
         if (cmd.hasOption("t")) {
             numThreads = Integer.parseInt(cmd.getOptionValue("t"));
         }
+        if (cmd.hasOption("virtualthreads")) {
+            virtualThreads = true;
+        }
+        if (cmd.hasOption("engine")) {
+            String engine = cmd.getOptionValue("engine");
+            if (engine.equalsIgnoreCase("async")) {
+                async = true;
+            } else if (!engine.equalsIgnoreCase("sync")) {
+                throw new ParseException("engine must be 'sync' or 'async'");
+            }
+        }
+        if (cmd.hasOption("inflight")) {
+            asyncInFlight = Integer.parseInt(cmd.getOptionValue("inflight"));
+        }
+        if (cmd.hasOption("docpool")) {
+            docPoolSize = Integer.parseInt(cmd.getOptionValue("docpool"));
+        }
+        if (cmd.hasOption("generators")) {
+            docPoolGenerators = Integer.parseInt(cmd.getOptionValue("generators"));
+        }
+        if (cmd.hasOption("rawbson")) {
+            rawBson = true;
+        }
         if (cmd.hasOption("fulltext")) {
             fulltext = true;
         }
@@ -284,5 +432,42 @@ public class POCTestOptions {
             }
 
         }
+
+        if (cmd.hasOption("targetdocs")) {
+            targetDocs = Long.parseLong(cmd.getOptionValue("targetdocs"));
+        }
+
+        if (cmd.hasOption("loaddocs")) {
+            loadDocs = Long.parseLong(cmd.getOptionValue("loaddocs"));
+            if (!cmd.hasOption("d")) {
+                // Run until it's loaded
+                duration = Integer.MAX_VALUE;
+            }
+        }
+
+        if (cmd.hasOption("batchesinflight")) {
+            batchesInFlight = Integer.parseInt(cmd.getOptionValue("batchesinflight"));
+        }
+
+        if (cmd.hasOption("scenario")) {
+            scenarioFile = cmd.getOptionValue("scenario");
+        }
+
+        if (cmd.hasOption("readpref") || cmd.hasOption("readconcern") || cmd.hasOption("writeconcern")) {
+            consistency = OpConsistency.parse(cmd.getOptionValue("readpref"), cmd.getOptionValue("readconcern"),
+                    cmd.getOptionValue("writeconcern"));
+        }
+
+        if (cmd.hasOption("staleness")) {
+            stalenessMs = Integer.parseInt(cmd.getOptionValue("staleness"));
+        }
+
+        if (cmd.hasOption("profile")) {
+            loadProfile = LoadProfile.load(cmd.getOptionValue("profile"));
+            opsPerSecond = (int) Math.round(loadProfile.rateAt(0));
+            if (!cmd.hasOption("d")) {
+                duration = (int) Math.ceil(loadProfile.totalSeconds());
+            }
+        }
     }
 }
@@ -3,49 +3,68 @@ package com.johnlpage.pocdriver;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import org.HdrHistogram.Histogram;
 import org.bson.Document;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashMap;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
 
 public class POCTestReporter implements Runnable {
-    private static final DateFormat DF_FULL = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    private static final DateFormat DF_TIME = new SimpleDateFormat("HH:mm:ss");
+    private static final double[] PERCENTILES = {50, 90, 95, 99, 99.9};
+    private static final String[] PERCENTILE_LABELS = {"p50", "p90", "p95", "p99", "p99.9"};
+    private static final DateTimeFormatter DF_TIME = DateTimeFormatter.ofPattern("HH:mm:ss");
     private final POCTestResults testResults;
     private final MongoClient mongoClient;
     private final POCTestOptions testOpts;
+    private final DocumentPool docPool;
+    private final DriverMetrics driverMetrics;
+    private final LoadTuner tuner;
+    private final TopologyMonitor topology;
+    private final StalenessProbe staleness;
+    // The monitor outlives a scenario phase, only changes after this are ours
+    private final long startNanos;
+    private int changesSeen;
+    private long lastPoolWaits = 0;
+    private final long[] lastClassErrors = new long[ErrorClass.ALL.length];
+    private ResultsWriter resultsWriter;
     Logger logger;
 
-    POCTestReporter(POCTestResults r, MongoClient mc, POCTestOptions t) {
+    POCTestReporter(POCTestResults r, MongoClient mc, POCTestOptions t, DocumentPool pool, DriverMetrics dm,
+                    TopologyMonitor tm, StalenessProbe sp) {
         mongoClient = mc;
+        topology = tm;
+        staleness = sp;
+        startNanos = System.nanoTime() - (long) (r.GetExactSecondsElapsed() * 1e9);
+        changesSeen = tm == null ? 0 : tm.changes().size();
+        docPool = pool;
+        driverMetrics = dm;
         testResults = r;
         testOpts = t;
         logger = LoggerFactory.getLogger(POCTestReporter.class);
-
-    }
-
-
-    private void logData() {
-        PrintWriter outfile = null;
+        tuner = testOpts.sloMs > 0 ? new LoadTuner(testOpts, testResults) : null;
 
         if (testOpts.logfile != null) {
-
             try {
-                outfile = new PrintWriter(new BufferedWriter(new FileWriter(testOpts.logfile, true)));
+                resultsWriter = new ResultsWriter(testOpts.logfile, testOpts.jsonLog);
+                if (!resultsWriter.filename().equals(testOpts.logfile)) {
+                    logger.warn("{} has different columns, writing results to {} instead",
+                            testOpts.logfile, resultsWriter.filename());
+                }
             } catch (IOException e) {
-                logger.error(e.getMessage());
+                logger.error("Cannot write results to {}: {}", testOpts.logfile, e.getMessage());
             }
         }
+    }
+
 
-        Long insertsDone = testResults.GetOpsDone("inserts");
+    private void logData() {
+        Long insertsDone = testResults.GetOpsDone(OpType.INSERTS);
         if (testResults.GetSecondsElapsed() < testOpts.reportTime)
             return;
         System.out.println("------------------------");
@@ -54,60 +73,296 @@ public class POCTestReporter implements Runnable {
             MongoCollection<Document> shards = configdb.getCollection("shards");
             testOpts.numShards = (int) shards.countDocuments();
         }
-        Date todaysdate = new Date();
+        OffsetDateTime now = OffsetDateTime.now();
+        long secondsElapsed = testResults.GetSecondsElapsed();
         System.out.format("After %d seconds (%s), %,d new documents inserted - collection has %,d in total \n",
-                testResults.GetSecondsElapsed(), DF_TIME.format(todaysdate), insertsDone, testResults.initialCount + insertsDone);
+                secondsElapsed, DF_TIME.format(now), insertsDone,
+                testResults.initialCount + insertsDone - testResults.GetDocsDeleted());
 
-        if (outfile != null) {
-            outfile.format("%d,%d", testResults.GetSecondsElapsed(), insertsDone);
+        if (testOpts.loadDocs > 0) {
+            printLoadProgress(insertsDone);
         }
 
-        HashMap<String, Long> results = testResults
+        EnumMap<OpType, Long> results = testResults
                 .GetOpsPerSecondLastInterval();
-        String[] opTypes = POCTestResults.opTypes;
-
-        for (String o : opTypes) {
+        testResults.SampleLatencies();
+        for (OpType o : OpType.ALL) {
             System.out.format("%,d %s per second since last report ",
                     results.get(o), o);
 
-            if (outfile != null) {
-                String str = DF_FULL.format(todaysdate);
-                String mydate = str.replaceAll("\\s+", "T");
-                outfile.format("%s,%d,%d", mydate, testResults.GetSecondsElapsed(), insertsDone);
-            }
-
-            Long opsDone = testResults.GetOpsDone(o);
+            Long opsDone = testResults.GetTotalLatency(o).getTotalCount();
 
             for (int i = 0; i < testOpts.slowThresholds.length; i++) {
                 int slowThreshold = testOpts.slowThresholds[i];
                 if (opsDone > 0) {
-                    Double fastops = 100 - (testResults.GetSlowOps(o, i) * 100.0)
+                    Double fastops = 100 - (testResults.GetSlowOps(o, slowThreshold) * 100.0)
                             / opsDone;
                     System.out.println();
                     System.out.format("\t%.2f %% in under %d milliseconds", fastops,
                             slowThreshold);
-                    if (outfile != null) {
-                        outfile.format(",%.2f", fastops);
-                    }
                 } else {
                     System.out.println();
                     System.out.format("\t%.2f %% in under %d milliseconds", (float) 100, slowThreshold);
-                    if (outfile != null) {
-                        outfile.format(",%d", 100);
-                    }
                 }
 
             }
-            if (outfile != null) outfile.format(",");
 
             System.out.println();
 
         }
-        if (outfile != null) {
-            outfile.println();
-            outfile.close();
+        if (resultsWriter != null) {
+            writeResults(now, secondsElapsed, results);
+        }
+        System.out.println();
+        printLatencyTable("since last report", false);
+        if (driverMetrics != null) {
+            printDriverMetrics();
+        }
+        if (staleness != null) {
+            printStaleness("since last report", staleness.sampleStaleness());
+        }
+        if (docPool != null) {
+            // If workers are waiting on an empty pool then document generation is the limit
+            long waits = docPool.emptyWaits();
+            System.out.format("Document pool %,d of %,d ready, workers found it empty %,d times since last report%n",
+                    docPool.occupancy(), docPool.capacity(), waits - lastPoolWaits);
+            lastPoolWaits = waits;
+        }
+        printErrors();
+        if (topology != null) {
+            printTopology();
+        }
+        if (tuner != null) {
+            tuner.intervalDone();
+        }
+        System.out.println();
+    }
+
+    /**
+     * How long writes took to become visible to the key queries' read preference
+     */
+    private void printStaleness(String period, Histogram h) {
+        System.out.println();
+        System.out.format("Staleness (ms) %s, %,d probes never seen%n", period, staleness.gaveUp());
+        printLatencyHeader();
+        if (h.getTotalCount() > 0) {
+            printLatencyRow("staleness", h);
+        }
+    }
+
+    /**
+     * Primary changes since the last report, timed like the rest of the report, and how
+     * far behind each secondary is
+     */
+    private void printTopology() {
+        List<TopologyMonitor.Change> changes = topology.changes();
+        for (; changesSeen < changes.size(); changesSeen++) {
+            printChange(changes.get(changesSeen));
+        }
+        Map<String, Double> lag = topology.lag();
+        if (!lag.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            lag.forEach((member, seconds) -> sb.append(String.format("%s%s %.1fs", sb.length() > 0 ? ", " : "", member, seconds)));
+            System.out.format("Replication lag: %s%n", sb);
+        }
+    }
+
+    private void printChange(TopologyMonitor.Change c) {
+        System.out.format("At %.1f seconds primary changed from %s to %s%n", (c.nanos - startNanos) / 1e9,
+                c.from == null ? "none" : c.from, c.to == null ? "none" : c.to);
+    }
+
+    /**
+     * Every primary change in this run, and how long each election left us without one
+     */
+    private void printElections() {
+        List<TopologyMonitor.Change> changes = topology.changes();
+        long lostAt = 0;
+        boolean any = false;
+        for (TopologyMonitor.Change c : changes) {
+            if (c.nanos - startNanos < 0) {
+                continue;
+            }
+            printChange(c);
+            any = true;
+            if (c.to == null) {
+                lostAt = c.nanos;
+            } else if (c.from == null && lostAt != 0) {
+                System.out.format("\tno primary for %,d ms%n", (c.nanos - lostAt) / 1000000);
+                lostAt = 0;
+            }
+        }
+        if (any) {
+            System.out.println();
+        }
+    }
+
+    /**
+     * Errors since the last report by kind, and whether we're in the middle of an outage
+     */
+    private void printErrors() {
+        StringBuilder sb = new StringBuilder();
+        for (ErrorClass e : ErrorClass.ALL) {
+            long total = 0;
+            for (OpType o : OpType.ALL) {
+                total += testResults.GetErrors(o, e);
+            }
+            if (total > lastClassErrors[e.ordinal()]) {
+                sb.append(String.format("%s%,d %s", sb.length() > 0 ? ", " : "", total - lastClassErrors[e.ordinal()], e));
+            }
+            lastClassErrors[e.ordinal()] = total;
+        }
+        if (sb.length() > 0) {
+            System.out.format("Errors since last report: %s%n", sb);
+        }
+        long outage = testResults.GetCurrentOutageNanos();
+        if (outage > 0) {
+            System.out.format("Unavailable for %,d ms so far%n", outage / 1000000);
+        }
+    }
+
+    /**
+     * Errors by op type and kind for the whole run, then each time nothing got through
+     */
+    private void printErrorSummary() {
+        boolean any = false;
+        for (OpType o : OpType.ALL) {
+            if (testResults.GetErrors(o) == 0) {
+                continue;
+            }
+            if (!any) {
+                System.out.format("%-14s", "errors");
+                for (ErrorClass e : ErrorClass.ALL) {
+                    System.out.format(" %14s", e);
+                }
+                System.out.println();
+                any = true;
+            }
+            System.out.format("%-14s", o);
+            for (ErrorClass e : ErrorClass.ALL) {
+                System.out.format(" %,14d", testResults.GetErrors(o, e));
+            }
+            System.out.println();
+        }
+        List<long[]> outages = testResults.GetOutages();
+        long ongoing = testResults.GetCurrentOutageNanos();
+        if (!outages.isEmpty() || ongoing > 0) {
+            if (any) {
+                System.out.println();
+            }
+            long worst = 0;
+            for (long[] outage : outages) {
+                System.out.format("Unavailable from %.1f to %.1f seconds - %,d ms%n",
+                        outage[0] / 1e9, outage[1] / 1e9, (outage[1] - outage[0]) / 1000000);
+                worst = Math.max(worst, outage[1] - outage[0]);
+            }
+            if (ongoing > 0) {
+                System.out.format("Still unavailable at the end, for the last %,d ms%n", ongoing / 1000000);
+            }
+            if (outages.size() > 1) {
+                System.out.format("Longest %,d ms%n", worst / 1000000);
+            }
+            any = true;
+        }
+        if (any) {
+            System.out.println();
+        }
+    }
+
+    private void writeResults(OffsetDateTime now, long secondsElapsed, EnumMap<OpType, Long> opsPerSecond) {
+        boolean corrected = testOpts.openLoop && testOpts.opsPerSecond > 0;
+        try {
+            for (OpType o : OpType.ALL) {
+                resultsWriter.writeInterval(now, secondsElapsed, o, opsPerSecond.get(o),
+                        testResults.GetErrorsLastInterval(o), testResults.GetOpsInFlight(o),
+                        testResults.GetIntervalLatency(o), corrected ? testResults.GetIntervalCorrectedLatency(o) : null,
+                        topology == null ? null : topology.primary(),
+                        topology == null || topology.lag().isEmpty() ? null : topology.maxLag());
+            }
+            resultsWriter.flush();
+        } catch (IOException e) {
+            logger.error("Cannot write results to {}: {}", testOpts.logfile, e.getMessage());
+        }
+    }
+
+    /**
+     * --loaddocs progress, counting whatever was in the collection when we started as loaded
+     */
+    private void printLoadProgress(long insertsDone) {
+        long loaded = Math.min(testResults.initialCount + insertsDone, testOpts.loadDocs);
+        double rate = insertsDone / Math.max(testResults.GetExactSecondsElapsed(), 1e-9);
+        String eta = "unknown";
+        if (rate > 0) {
+            long seconds = (long) ((testOpts.loadDocs - loaded) / rate);
+            eta = String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
         }
+        System.out.format("Loaded %,d of %,d documents (%.1f%%) at %,.0f per second, %s to go%n",
+                loaded, testOpts.loadDocs, loaded * 100.0 / testOpts.loadDocs, rate, eta);
+    }
+
+    /**
+     * What the driver saw - if the op latency is much higher than the round trip
+     * then the time is going on the client or waiting for a connection
+     */
+    private void printDriverMetrics() {
         System.out.println();
+        System.out.format("Server round trip (ms) since last report%n");
+        printLatencyHeader();
+        for (int i = 0; i < DriverMetrics.COMMANDS.length; i++) {
+            Histogram h = driverMetrics.sampleRoundTrips(i);
+            if (h.getTotalCount() > 0) {
+                printLatencyRow(DriverMetrics.COMMANDS[i], h);
+            }
+        }
+        Histogram wait = driverMetrics.sampleCheckoutWait();
+        if (wait.getTotalCount() > 0) {
+            printLatencyRow("pool checkout wait", wait);
+        }
+        int maxPool = driverMetrics.maxPoolSize();
+        int peak = driverMetrics.samplePeakInUse();
+        System.out.format("Connection pool: %,d in use, peak %,d of %,d (%.0f%%), %,d waiting, "
+                        + "%,d created, %,d closed, %,d checkout failures, %,d command failures since last report%n",
+                driverMetrics.inUse(), peak, maxPool, maxPool > 0 ? peak * 100.0 / maxPool : 0.0,
+                driverMetrics.waiting(), driverMetrics.sampleCreated(), driverMetrics.sampleClosed(),
+                driverMetrics.sampleCheckOutFailures(), driverMetrics.sampleCommandFailures());
+    }
+
+    /**
+     * Percentile table in milliseconds, either for the last interval or the whole run so far.
+     * In open loop mode each op also gets a row measured from the intended start time.
+     */
+    private void printLatencyTable(String title, boolean total) {
+        boolean corrected = testOpts.openLoop && testOpts.opsPerSecond > 0;
+        System.out.format("Latency (ms) %s%n", title);
+        printLatencyHeader();
+
+        for (OpType o : OpType.ALL) {
+            Histogram h = total ? testResults.GetTotalLatency(o) : testResults.GetIntervalLatency(o);
+            if (h.getTotalCount() == 0) {
+                continue;
+            }
+            printLatencyRow(o.toString(), h);
+            if (corrected) {
+                printLatencyRow(o + " (corrected)",
+                        total ? testResults.GetTotalCorrectedLatency(o) : testResults.GetIntervalCorrectedLatency(o));
+            }
+        }
+    }
+
+    static void printLatencyHeader() {
+        System.out.format("%-24s %12s", "", "count");
+        for (String label : PERCENTILE_LABELS) {
+            System.out.format(" %9s", label);
+        }
+        System.out.format(" %9s %9s%n", "max", "mean");
+    }
+
+    static void printLatencyRow(String name, Histogram h) {
+        System.out.format("%-24s %,12d", name, h.getTotalCount());
+        for (double p : PERCENTILES) {
+            System.out.format(" %9.3f", h.getValueAtPercentile(p) / 1000.0);
+        }
+        System.out.format(" %9.3f %9.3f%n", h.getMaxValue() / 1000.0, h.getMean() / 1000.0);
     }
 
     public void run() {
@@ -121,25 +376,59 @@ public class POCTestReporter implements Runnable {
      */
     public void finalReport() {
 
-        Long insertsDone = testResults.GetOpsDone("inserts");
+        Long insertsDone = testResults.GetOpsDone(OpType.INSERTS);
 
         Long secondsElapsed = testResults.GetSecondsElapsed();
+        double exactSecondsElapsed = testResults.GetExactSecondsElapsed();
 
         System.out.println("------------------------");
         System.out.format("After %d seconds, %d new documents inserted - collection has %d in total \n",
-                secondsElapsed, insertsDone, testResults.initialCount + insertsDone);
+                secondsElapsed, insertsDone, testResults.initialCount + insertsDone - testResults.GetDocsDeleted());
 
-        String[] opTypes = POCTestResults.opTypes;
-
-        for (String o : opTypes) {
+        for (OpType o : OpType.ALL) {
 
             Long opsDone = testResults.GetOpsDone(o);
 
-            System.out.format("%d %s per second on average", (int) (1f * opsDone / secondsElapsed), o);
+            System.out.format("%,.1f %s per second on average", opsDone / exactSecondsElapsed, o);
             System.out.println();
 
         }
+        if (testOpts.batchesInFlight > 1) {
+            // So runs with different --batchesinflight can be compared
+            System.out.format("With up to %d bulk writes in flight per thread%n", testOpts.batchesInFlight);
+        }
+        Map<String, Long> retries = testResults.GetRetries();
+        if (!retries.isEmpty()) {
+            System.out.print("Bulk writes retried:");
+            retries.forEach((reason, count) -> System.out.format(" %s x%d", reason, count));
+            System.out.println();
+        }
         System.out.println();
+        EnumMap<OpType, Long> lastInterval = testResults.GetOpsPerSecondLastInterval();
+        testResults.SampleLatencies();
+        printLatencyTable("for the whole run", true);
+        System.out.println();
+        printErrorSummary();
+        if (staleness != null) {
+            staleness.sampleStaleness();
+            printStaleness("for the whole run", staleness.totalStaleness());
+            System.out.println();
+        }
+        if (topology != null) {
+            printElections();
+        }
+        if (tuner != null) {
+            tuner.printReport();
+        }
 
+        if (resultsWriter != null) {
+            // Whatever happened since the last report
+            writeResults(OffsetDateTime.now(), secondsElapsed, lastInterval);
+            try {
+                resultsWriter.close();
+            } catch (IOException e) {
+                logger.error(e.getMessage());
+            }
+        }
     }
 }
@@ -1,106 +1,350 @@
 package com.johnlpage.pocdriver;
 
+import org.HdrHistogram.Histogram;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Date;
-import java.util.HashMap;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class POCTestResults {
 
-    public static String[] opTypes = {"inserts", "keyqueries", "updates", "rangequeries"};
-    private final Date startTime;
-    private final ConcurrentHashMap<String, POCopStats> opStats;
+    private final long startNanos;
+    // Indexed by OpType.ordinal()
+    private final POCopStats[] opStats;
+    private final List<LatencyRecorder> latencyRecorders;
+    private final LatencyRecorder[] sharedRecorders;
+    // A range delete is one op but many documents
+    private final AtomicLong docsDeleted = new AtomicLong();
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    // When the first failure that wasn't the op's own fault happened, NOT_FAILING while
+    // ops are getting through. Closed by the first op to work that started after it
+    private static final long NOT_FAILING = Long.MIN_VALUE;
+    private final AtomicLong failingSince = new AtomicLong(NOT_FAILING);
+    // Start and end of each, in nanoseconds from the start of the test
+    private final List<long[]> outages = new CopyOnWriteArrayList<>();
+    // Batches resent, keyed by the server error code or exception that made us
+    private final Map<String, LongAdder> retries = new ConcurrentHashMap<>();
+    // Copies of the total histograms made by SampleLatencies, for readers other than the
+    // reporter. Uncorrected then corrected, as in LatencyRecorder. Only made if anyone reads them
+    private volatile boolean publishLatencies = false;
+    private volatile Histogram[] publishedLatencies;
+    // Set to end the test before the duration is up
+    private volatile boolean stopRequested = false;
+    // Shared by every worker when there's a -q, otherwise null
+    private final RateLimiter rateLimiter;
     /**
      * The time this LoadRunner started
      */
     Logger logger;
     long initialCount;
-    private Date lastIntervalTime;
+    private long lastIntervalNanos;
 
 
     POCTestResults(POCTestOptions testOptions) {
         logger = LoggerFactory.getLogger(POCTestResults.class);
 
-        startTime = new Date();
+        // Everything is timed with System.nanoTime() so it's immune to clock changes
+        startNanos = System.nanoTime();
 
-        lastIntervalTime = new Date();
-        opStats = new ConcurrentHashMap<String, POCopStats>();
+        lastIntervalNanos = startNanos;
+        opStats = new POCopStats[OpType.ALL.length];
+        latencyRecorders = new CopyOnWriteArrayList<>();
+        sharedRecorders = new LatencyRecorder[Runtime.getRuntime().availableProcessors()];
 
-        for (String s : opTypes) {
-            POCopStats stats = new POCopStats();
-            stats.slowOps = new AtomicLong[testOptions.slowThresholds.length];
-            for (int i = 0; i < testOptions.slowThresholds.length; i++) {
-                stats.slowOps[i] = new AtomicLong();
+        for (OpType o : OpType.ALL) {
+            opStats[o.ordinal()] = new POCopStats();
+        }
+        rateLimiter = testOptions.opsPerSecond > 0
+                ? new RateLimiter(testOptions.opsPerSecond, testOptions.openLoop) : null;
+    }
+
+    RateLimiter GetRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Each worker gets its own recorder so recording never contends with other threads
+     */
+    LatencyRecorder newLatencyRecorder() {
+        return newLatencyRecorder(false);
+    }
+
+    /**
+     * @param shared true if the recorder will be written to from more than one thread
+     */
+    LatencyRecorder newLatencyRecorder(boolean shared) {
+        LatencyRecorder recorder = new LatencyRecorder(shared);
+        latencyRecorders.add(recorder);
+        return recorder;
+    }
+
+    /**
+     * For when there are too many workers to each have their own, spread them
+     * over one shared recorder per CPU
+     */
+    synchronized LatencyRecorder sharedLatencyRecorder(int workerID) {
+        int stripe = Math.floorMod(workerID, sharedRecorders.length);
+        if (sharedRecorders[stripe] == null) {
+            sharedRecorders[stripe] = new LatencyRecorder(true);
+            latencyRecorders.add(sharedRecorders[stripe]);
+        }
+        return sharedRecorders[stripe];
+    }
+
+    /**
+     * Pull the latest interval out of every worker's recorder and fold it into the totals.
+     * Called by the reporter once per report, the workers carry on recording meanwhile.
+     */
+    synchronized void SampleLatencies() {
+        for (OpType o : OpType.ALL) {
+            POCopStats os = opStats[o.ordinal()];
+            os.intervalLatency.reset();
+            os.intervalCorrectedLatency.reset();
+            for (LatencyRecorder recorder : latencyRecorders) {
+                recorder.drainInto(o, os.intervalLatency);
+                recorder.drainCorrectedInto(o, os.intervalCorrectedLatency);
             }
-            opStats.put(s, stats);
+            os.totalLatency.add(os.intervalLatency);
+            os.totalCorrectedLatency.add(os.intervalCorrectedLatency);
+        }
+        if (!publishLatencies) {
+            return;
+        }
+        Histogram[] published = new Histogram[OpType.ALL.length * 2];
+        for (OpType o : OpType.ALL) {
+            published[o.ordinal()] = opStats[o.ordinal()].totalLatency.copy();
+            published[OpType.ALL.length + o.ordinal()] = opStats[o.ordinal()].totalCorrectedLatency.copy();
         }
+        publishedLatencies = published;
+    }
+
+    /**
+     * Have SampleLatencies() keep copies for GetPublishedLatency() from now on
+     */
+    void PublishLatencies() {
+        publishLatencies = true;
+    }
+
+    /**
+     * @return the whole run's latency as of the last SampleLatencies(), never changed after
+     * it's returned so it's safe to read from any thread. Null before the first report, or
+     * without PublishLatencies().
+     */
+    Histogram GetPublishedLatency(OpType opType, boolean corrected) {
+        Histogram[] published = publishedLatencies;
+        if (published == null) {
+            return null;
+        }
+        return published[(corrected ? OpType.ALL.length : 0) + opType.ordinal()];
+    }
+
+    Histogram GetIntervalLatency(OpType opType) {
+        return opStats[opType.ordinal()].intervalLatency;
+    }
+
+    Histogram GetTotalLatency(OpType opType) {
+        return opStats[opType.ordinal()].totalLatency;
+    }
+
+    Histogram GetIntervalCorrectedLatency(OpType opType) {
+        return opStats[opType.ordinal()].intervalCorrectedLatency;
+    }
+
+    Histogram GetTotalCorrectedLatency(OpType opType) {
+        return opStats[opType.ordinal()].totalCorrectedLatency;
     }
 
     //This returns inserts per second since we last called it
     //Rather than us keeping an overall figure
 
-    HashMap<String, Long> GetOpsPerSecondLastInterval() {
+    EnumMap<OpType, Long> GetOpsPerSecondLastInterval() {
 
-        HashMap<String, Long> rval = new HashMap<String, Long>();
+        EnumMap<OpType, Long> rval = new EnumMap<>(OpType.class);
 
-        Date now = new Date();
-        long milliSecondsSinceLastCheck = now.getTime() - lastIntervalTime.getTime();
+        long now = System.nanoTime();
+        long nanoSecondsSinceLastCheck = Math.max(now - lastIntervalNanos, 1);
 
-        for (String s : opTypes) {
+        for (OpType s : OpType.ALL) {
             Long opsNow = GetOpsDone(s);
             Long opsPrev = GetPrevOpsDone(s);
-            Long opsPerInterval = ((opsNow - opsPrev) * 1000) / milliSecondsSinceLastCheck;
+            Long opsPerInterval = ((opsNow - opsPrev) * 1_000_000_000L) / nanoSecondsSinceLastCheck;
             rval.put(s, opsPerInterval);
             SetPrevOpsDone(s, opsNow);
         }
 
-        lastIntervalTime = now;
+        lastIntervalNanos = now;
 
         return rval;
     }
 
-    public Long GetSecondsElapsed() {
-        Date now = new Date();
-        return (now.getTime() - startTime.getTime()) / 1000;
+    // Called by every worker on every op so no allocation here
+    public long GetSecondsElapsed() {
+        return (System.nanoTime() - startNanos) / 1_000_000_000L;
+    }
+
+    void StopTest() {
+        stopRequested = true;
+    }
+
+    // Workers check this every op along with the duration
+    boolean StopRequested() {
+        return stopRequested;
+    }
+
+    public double GetExactSecondsElapsed() {
+        return (System.nanoTime() - startNanos) / 1e9;
     }
 
 
-    private Long GetPrevOpsDone(String opType) {
-        POCopStats os = opStats.get(opType);
+    private Long GetPrevOpsDone(OpType opType) {
+        POCopStats os = opStats[opType.ordinal()];
         return os.intervalCount.get();
     }
 
-    private void SetPrevOpsDone(String opType, Long numOps) {
-        POCopStats os = opStats.get(opType);
+    private void SetPrevOpsDone(OpType opType, Long numOps) {
+        POCopStats os = opStats[opType.ordinal()];
         os.intervalCount.set(numOps);
     }
 
-    public Long GetOpsDone(String opType) {
-        POCopStats os = opStats.get(opType);
-        return os.totalOpsDone.get();
+    public Long GetOpsDone(OpType opType) {
+        POCopStats os = opStats[opType.ordinal()];
+        return os.totalOpsDone.sum();
     }
 
 
-    public Long GetSlowOps(String opType, int thresholdIndex) {
-        POCopStats os = opStats.get(opType);
-        return os.slowOps[thresholdIndex].get();
+    /**
+     * Ops slower than the given threshold so far, as of the last SampleLatencies()
+     */
+    public Long GetSlowOps(OpType opType, int thresholdMs) {
+        Histogram h = GetTotalLatency(opType);
+        return h.getTotalCount() - h.getCountBetweenValues(0, thresholdMs * 1000L);
     }
 
-    public void RecordSlowOp(String opType, int number, int thresholdIndex) {
-        POCopStats os = opStats.get(opType);
-        os.slowOps[thresholdIndex].addAndGet(number);
+    public void RecordOpsDone(OpType opType, int howmany) {
+        opStats[opType.ordinal()].totalOpsDone.add(howmany);
+    }
 
+    public void RecordErrors(OpType opType, int howmany) {
+        RecordErrors(opType, ErrorClass.OTHER, howmany);
     }
 
-    public void RecordOpsDone(String opType, int howmany) {
-        POCopStats os = opStats.get(opType);
-        if (os == null) {
-            logger.warn("Cannot fetch opstats for {}", opType);
-        } else {
-            os.totalOpsDone.addAndGet(howmany);
+    public void RecordErrors(OpType opType, Throwable cause, int howmany) {
+        RecordErrors(opType, ErrorClass.of(cause), howmany);
+    }
+
+    public void RecordErrors(OpType opType, ErrorClass errorClass, int howmany) {
+        POCopStats os = opStats[opType.ordinal()];
+        os.errors.add(howmany);
+        os.errorsByClass[errorClass.ordinal()].add(howmany);
+        if (errorClass.unavailable() && failingSince.get() == NOT_FAILING) {
+            long now = System.nanoTime();
+            if (failingSince.compareAndSet(NOT_FAILING, now)) {
+                logger.info("Cluster unavailable at {} seconds ({} on {})",
+                        String.format("%.1f", (now - startNanos) / 1e9), errorClass, opType);
+            }
+        }
+    }
+
+    /**
+     * An op that started at opStartNanos worked. Only a read of a volatile unless we're
+     * in an outage, so it's fine to call for every op
+     */
+    public void RecordSuccess(long opStartNanos) {
+        long since = failingSince.get();
+        if (since == NOT_FAILING || opStartNanos - since < 0) {
+            // Ops that were already under way before the failure don't count
+            return;
+        }
+        if (failingSince.compareAndSet(since, NOT_FAILING)) {
+            long now = System.nanoTime();
+            outages.add(new long[]{since - startNanos, now - startNanos});
+            logger.info("Cluster available again after {} ms", (now - since) / 1000000);
         }
     }
+
+    /**
+     * Each finished outage as {start, end} in nanoseconds from the start of the test
+     */
+    List<long[]> GetOutages() {
+        return outages;
+    }
+
+    /**
+     * Nanoseconds since ops started failing, 0 if they aren't
+     */
+    long GetCurrentOutageNanos() {
+        long since = failingSince.get();
+        return since == NOT_FAILING ? 0 : System.nanoTime() - since;
+    }
+
+    public long GetErrors(OpType opType, ErrorClass errorClass) {
+        return opStats[opType.ordinal()].errorsByClass[errorClass.ordinal()].sum();
+    }
+
+    public void RecordRetry(String reason) {
+        retries.computeIfAbsent(reason, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * Retries so far by reason, sorted
+     */
+    Map<String, Long> GetRetries() {
+        Map<String, Long> rval = new TreeMap<>();
+        retries.forEach((k, v) -> rval.put(k, v.sum()));
+        return rval;
+    }
+
+    /**
+     * Errors since the last call - reporter only
+     */
+    long GetErrorsLastInterval(OpType opType) {
+        POCopStats os = opStats[opType.ordinal()];
+        long errorsNow = os.errors.sum();
+        long rval = errorsNow - os.intervalErrors;
+        os.intervalErrors = errorsNow;
+        return rval;
+    }
+
+    /**
+     * Up by the number of ops when they are sent, back down when they return whether they worked or not
+     */
+    public void RecordOpsInFlight(OpType opType, int delta) {
+        opStats[opType.ordinal()].inFlight.add(delta);
+    }
+
+    public long GetOpsInFlight(OpType opType) {
+        return opStats[opType.ordinal()].inFlight.sum();
+    }
+
+    public long GetErrors(OpType opType) {
+        return opStats[opType.ordinal()].errors.sum();
+    }
+
+    public void WorkerStarted() {
+        activeWorkers.incrementAndGet();
+    }
+
+    public void WorkerFinished() {
+        activeWorkers.decrementAndGet();
+    }
+
+    public int GetActiveWorkers() {
+        return activeWorkers.get();
+    }
+
+    public void RecordDocsDeleted(int howmany) {
+        docsDeleted.addAndGet(howmany);
+    }
+
+    public long GetDocsDeleted() {
+        return docsDeleted.get();
+    }
 }
@@ -1,16 +1,41 @@
 package com.johnlpage.pocdriver;
 
 
+import org.HdrHistogram.Histogram;
+
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 
 public class POCopStats {
     public AtomicLong intervalCount;
-    public AtomicLong totalOpsDone;
-    public AtomicLong[] slowOps;
+    // Every worker adds to this, striped so they don't all fight over one cache line
+    public LongAdder totalOpsDone;
+    public LongAdder errors;
+    public long intervalErrors;
+    // The same errors split up by ErrorClass.ordinal()
+    public LongAdder[] errorsByClass;
+    // Sent to the server and not back yet
+    public LongAdder inFlight;
+    // Merged from every worker's LatencyRecorder by the reporter
+    public Histogram intervalLatency;
+    public Histogram totalLatency;
+    // Measured from the intended start time, only filled in open loop mode
+    public Histogram intervalCorrectedLatency;
+    public Histogram totalCorrectedLatency;
 
     POCopStats() {
         intervalCount = new AtomicLong(0);
-        totalOpsDone = new AtomicLong(0);
+        totalOpsDone = new LongAdder();
+        errors = new LongAdder();
+        errorsByClass = new LongAdder[ErrorClass.ALL.length];
+        for (ErrorClass e : ErrorClass.ALL) {
+            errorsByClass[e.ordinal()] = new LongAdder();
+        }
+        inFlight = new LongAdder();
+        intervalLatency = LatencyRecorder.newHistogram();
+        totalLatency = LatencyRecorder.newHistogram();
+        intervalCorrectedLatency = LatencyRecorder.newHistogram();
+        totalCorrectedLatency = LatencyRecorder.newHistogram();
     }
 }
@@ -0,0 +1,113 @@
+package com.johnlpage.pocdriver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * One schedule of start times shared by every worker, in System.nanoTime() terms.
+ * <p>
+ * Each op claims the next slot with a CAS and waits for it. Slots are fixed points on
+ * the schedule so oversleeping one doesn't push the rest back, which keeps the overall
+ * rate right at anything from a few ops/s to millions.
+ * <p>
+ * With a backlog (open loop) slots are never skipped - if the workers fall behind they run
+ * ops as fast as they can until they catch up, and the intended start tells you how late
+ * they were. Without one a slot in the past moves up to now, so a slow spell doesn't
+ * turn into a burst afterwards.
+ */
+public class RateLimiter {
+    private final AtomicLong nextSlot;
+    private final boolean backlog;
+    private final LongSupplier clock;
+    private volatile long intervalNanos;
+    // Bumped when waiting workers should give up the slot they have and take a new one.
+    // Only one thread changes the rate so ++ on a volatile is fine
+    private volatile int generation = 0;
+    // Re-check for a rate change this often when waiting a long time for a slot
+    private static final long MAX_PARK_NANOS = 10_000_000;
+
+    RateLimiter(double opsPerSecond, boolean backlog) {
+        this(opsPerSecond, backlog, System::nanoTime);
+    }
+
+    RateLimiter(double opsPerSecond, boolean backlog, LongSupplier clock) {
+        this.backlog = backlog;
+        this.clock = clock;
+        intervalNanos = toInterval(opsPerSecond);
+        nextSlot = new AtomicLong(clock.getAsLong());
+    }
+
+    private static long toInterval(double opsPerSecond) {
+        if (opsPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be more than 0 ops/s");
+        }
+        return Math.max(1, Math.round(1e9 / opsPerSecond));
+    }
+
+    /**
+     * Change the rate from now on. Any backlog at the old rate is dropped.
+     */
+    void setRate(double opsPerSecond) {
+        intervalNanos = toInterval(opsPerSecond);
+        nextSlot.set(clock.getAsLong());
+        generation++;
+    }
+
+    /**
+     * Change the rate keeping the schedule, for small frequent changes like following a
+     * load profile. Any backlog is kept, but if the next slot is further off than the new
+     * interval - coming up from a very low rate - it's brought forward.
+     */
+    void adjustRate(double opsPerSecond) {
+        long interval = toInterval(opsPerSecond);
+        intervalNanos = interval;
+        long latest = clock.getAsLong() + interval;
+        long slot = nextSlot.getAndAccumulate(latest, Math::min);
+        if (slot > latest) {
+            generation++;
+        }
+    }
+
+    double getRate() {
+        return 1e9 / intervalNanos;
+    }
+
+    /**
+     * Claim the next start time without waiting for it
+     */
+    long nextSlot() {
+        while (true) {
+            long interval = intervalNanos;
+            long slot = nextSlot.get();
+            long start = slot;
+            if (!backlog) {
+                start = Math.max(slot, clock.getAsLong());
+            }
+            if (nextSlot.compareAndSet(slot, start + interval)) {
+                return start;
+            }
+        }
+    }
+
+    /**
+     * Wait for our turn
+     *
+     * @return when this op was meant to start
+     */
+    long acquire() {
+        int gen = generation;
+        long intendedStart = nextSlot();
+        long now = clock.getAsLong();
+        while (now < intendedStart) {
+            LockSupport.parkNanos(Math.min(intendedStart - now, MAX_PARK_NANOS));
+            if (gen != generation) {
+                // Our slot was on the old schedule
+                gen = generation;
+                intendedStart = nextSlot();
+            }
+            now = clock.getAsLong();
+        }
+        return intendedStart;
+    }
+}
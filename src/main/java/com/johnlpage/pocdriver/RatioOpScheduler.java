@@ -0,0 +1,69 @@
+package com.johnlpage.pocdriver;
+
+import java.util.ArrayDeque;
+import java.util.SplittableRandom;
+
+/**
+ * Picks ops at random in proportion to their weights using an alias table (Vose's method),
+ * so each choice is one random number and one array lookup whatever the mix.
+ */
+public class RatioOpScheduler implements OpScheduler {
+    private final SplittableRandom rng;
+    private final double[] probability;
+    private final int[] alias;
+
+    RatioOpScheduler(int[] weights, long seed) {
+        rng = new SplittableRandom(seed);
+        int n = weights.length;
+        probability = new double[n];
+        alias = new int[n];
+
+        long total = 0;
+        for (int w : weights) {
+            total += Math.max(w, 0);
+        }
+        if (total == 0) {
+            // Nothing to choose between - always the same op
+            for (int i = 0; i < n; i++) {
+                alias[i] = OpScheduler.noWeightsOp(n);
+            }
+            return;
+        }
+
+        double[] scaled = new double[n];
+        ArrayDeque<Integer> small = new ArrayDeque<>();
+        ArrayDeque<Integer> large = new ArrayDeque<>();
+        for (int i = 0; i < n; i++) {
+            scaled[i] = (double) Math.max(weights[i], 0) * n / total;
+            if (scaled[i] < 1.0) {
+                small.push(i);
+            } else {
+                large.push(i);
+            }
+        }
+        while (!small.isEmpty() && !large.isEmpty()) {
+            int s = small.pop();
+            int l = large.pop();
+            probability[s] = scaled[s];
+            alias[s] = l;
+            scaled[l] = scaled[l] + scaled[s] - 1.0;
+            if (scaled[l] < 1.0) {
+                small.push(l);
+            } else {
+                large.push(l);
+            }
+        }
+        // Whatever is left over is 1 give or take rounding
+        while (!large.isEmpty()) {
+            probability[large.pop()] = 1.0;
+        }
+        while (!small.isEmpty()) {
+            probability[small.pop()] = 1.0;
+        }
+    }
+
+    public int nextOp() {
+        int column = rng.nextInt(probability.length);
+        return rng.nextDouble() < probability[column] ? column : alias[column];
+    }
+}
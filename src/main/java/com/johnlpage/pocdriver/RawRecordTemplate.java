@@ -0,0 +1,169 @@
+package com.johnlpage.pocdriver;
+
+import org.bson.RawBsonDocument;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * A TestRecord encoded to BSON once, new records are made by copying the bytes and
+ * patching the _id and the fldN numbers, dates and strings in place. There is no
+ * Document tree and no codec involved per insert.
+ * <p>
+ * Numbers and dates vary the same way TestRecord's do, strings keep the length they
+ * had in the template but get a different slice of lorem ipsum. One per worker.
+ */
+public class RawRecordTemplate {
+    private static final byte BSON_DOUBLE = 0x01;
+    private static final byte BSON_STRING = 0x02;
+    private static final byte BSON_DOCUMENT = 0x03;
+    private static final byte BSON_ARRAY = 0x04;
+    private static final byte BSON_BINARY = 0x05;
+    private static final byte BSON_OBJECTID = 0x07;
+    private static final byte BSON_BOOLEAN = 0x08;
+    private static final byte BSON_DATE = 0x09;
+    private static final byte BSON_NULL = 0x0A;
+    private static final byte BSON_INT32 = 0x10;
+    private static final byte BSON_INT64 = 0x12;
+
+    private final byte[] template;
+    private final long numberSize;
+    private final byte[] lorem;
+    private final SplittableRandom rng;
+    private final List<Integer> longSlots = new ArrayList<>();
+    private final List<Integer> dateSlots = new ArrayList<>();
+    private final List<int[]> stringSlots = new ArrayList<>();
+    private int workerSlot = -1;
+    private int sequenceSlot = -1;
+
+    RawRecordTemplate(byte[] encoded, long numberSize, long seed) {
+        template = encoded;
+        this.numberSize = numberSize;
+        lorem = TestRecord.getLoremText().getBytes(StandardCharsets.UTF_8);
+        rng = new SplittableRandom(seed);
+        scanDocument(0, false);
+        if (workerSlot < 0 || sequenceSlot < 0) {
+            throw new IllegalArgumentException("Template has no {w, i} _id to patch");
+        }
+    }
+
+    /**
+     * Walk the BSON noting where everything we want to change lives
+     */
+    private void scanDocument(int start, boolean inId) {
+        int end = start + readInt(start) - 1;
+        int pos = start + 4;
+        while (pos < end) {
+            byte type = template[pos++];
+            int nameStart = pos;
+            while (template[pos] != 0) pos++;
+            String name = new String(template, nameStart, pos - nameStart, StandardCharsets.UTF_8);
+            pos++;
+            boolean field = name.startsWith("fld");
+
+            switch (type) {
+                case BSON_STRING: {
+                    int length = readInt(pos);
+                    if (field) {
+                        // Without the trailing null
+                        stringSlots.add(new int[]{pos + 4, length - 1});
+                    }
+                    pos += 4 + length;
+                    break;
+                }
+                case BSON_DOCUMENT:
+                    // Either the _id or a nodeN sub document
+                    scanDocument(pos, !inId && name.equals("_id"));
+                    pos += readInt(pos);
+                    break;
+                case BSON_ARRAY:
+                    pos += readInt(pos);
+                    break;
+                case BSON_BINARY:
+                    pos += 4 + 1 + readInt(pos);
+                    break;
+                case BSON_INT32:
+                    if (inId && name.equals("w")) {
+                        workerSlot = pos;
+                    } else if (inId && name.equals("i")) {
+                        sequenceSlot = pos;
+                    }
+                    pos += 4;
+                    break;
+                case BSON_INT64:
+                    if (field) {
+                        longSlots.add(pos);
+                    }
+                    pos += 8;
+                    break;
+                case BSON_DATE:
+                    if (field) {
+                        dateSlots.add(pos);
+                    }
+                    pos += 8;
+                    break;
+                case BSON_DOUBLE:
+                    pos += 8;
+                    break;
+                case BSON_OBJECTID:
+                    pos += 12;
+                    break;
+                case BSON_BOOLEAN:
+                    pos += 1;
+                    break;
+                case BSON_NULL:
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unexpected BSON type " + type + " in template field " + name);
+            }
+        }
+    }
+
+    RawBsonDocument newRecord(int workerID, int sequence) {
+        byte[] doc = template.clone();
+        writeInt(doc, workerSlot, workerID);
+        writeInt(doc, sequenceSlot, sequence);
+        for (int slot : longSlots) {
+            writeLong(doc, slot, (long) Math.abs(Math.floor(rng.nextGaussian() * numberSize)));
+        }
+        long now = System.currentTimeMillis();
+        for (int slot : dateSlots) {
+            // Push it back 30 years or so, as TestRecord does
+            writeLong(doc, slot, (long) (now - Math.abs(Math.floor(rng.nextGaussian() * 100000000 * 3000))));
+        }
+        for (int[] slot : stringSlots) {
+            fillText(doc, slot[0], slot[1]);
+        }
+        return new RawBsonDocument(doc);
+    }
+
+    private void fillText(byte[] doc, int offset, int length) {
+        int done = 0;
+        while (done < length) {
+            int chunk = Math.min(length - done, lorem.length);
+            int from = rng.nextInt(lorem.length - chunk + 1);
+            System.arraycopy(lorem, from, doc, offset + done, chunk);
+            done += chunk;
+        }
+    }
+
+    private int readInt(int pos) {
+        return (template[pos] & 0xff) | (template[pos + 1] & 0xff) << 8
+                | (template[pos + 2] & 0xff) << 16 | (template[pos + 3] & 0xff) << 24;
+    }
+
+    // BSON is little endian
+    private static void writeInt(byte[] doc, int pos, int value) {
+        doc[pos] = (byte) value;
+        doc[pos + 1] = (byte) (value >>> 8);
+        doc[pos + 2] = (byte) (value >>> 16);
+        doc[pos + 3] = (byte) (value >>> 24);
+    }
+
+    private static void writeLong(byte[] doc, int pos, long value) {
+        writeInt(doc, pos, (int) value);
+        writeInt(doc, pos + 4, (int) (value >>> 32));
+    }
+}
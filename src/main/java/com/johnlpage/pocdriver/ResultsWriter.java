@@ -0,0 +1,158 @@
+package com.johnlpage.pocdriver;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+/**
+ * The -o results file, one row per op type per report interval as CSV or JSON lines.
+ * Opened once and kept open for the whole run, flushed after each interval so
+ * whatever is reading it sees complete rows.
+ */
+public class ResultsWriter {
+    private static final String[] COLUMNS = {"time", "elapsed_s", "op", "count", "ops_per_s", "errors", "in_flight",
+            "p50_ms", "p90_ms", "p95_ms", "p99_ms", "p99_9_ms", "max_ms", "mean_ms", "corrected_p99_ms",
+            "primary", "repl_lag_s"};
+    private static final double[] PERCENTILES = {50, 90, 95, 99, 99.9};
+
+    private final BufferedWriter out;
+    private final boolean json;
+    private final String filename;
+
+    ResultsWriter(String filename, boolean json) throws IOException {
+        this.json = json;
+        File file = json ? new File(filename) : csvFile(new File(filename));
+        this.filename = file.getPath();
+        // Appending to an earlier run's CSV, it already has a header
+        boolean header = !json && file.length() == 0;
+        out = new BufferedWriter(new FileWriter(file, true));
+        if (header) {
+            out.write(String.join(",", COLUMNS));
+            out.newLine();
+        }
+    }
+
+    /**
+     * @return file if it's empty or has our columns, otherwise the first of name-2.csv, name-3.csv
+     * and so on that is - an earlier version's CSV would end up with rows that don't match its header
+     */
+    static File csvFile(File file) throws IOException {
+        String header = String.join(",", COLUMNS);
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int n = 2; file.length() > 0 && !header.equals(firstLine(file)); n++) {
+            file = new File(file.getParentFile(), base + "-" + n + extension);
+        }
+        return file;
+    }
+
+    private static String firstLine(File file) throws IOException {
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            return in.readLine();
+        }
+    }
+
+    /**
+     * Where the results are going, which isn't -o if that's a CSV with other columns
+     */
+    String filename() {
+        return filename;
+    }
+
+    /**
+     * @param latency   the interval's latency histogram for this op
+     * @param corrected the same measured from the intended start, null unless open loop
+     * @param primary   the replica set primary at the time, null if there isn't one
+     * @param replLag   the furthest behind secondary in seconds, null if not known
+     */
+    synchronized void writeInterval(OffsetDateTime time, long elapsedSeconds, OpType op, long opsPerSecond,
+                                    long errors, long inFlight, Histogram latency, Histogram corrected,
+                                    String primary, Double replLag) throws IOException {
+        Object[] values = new Object[COLUMNS.length];
+        values[0] = time.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+        values[1] = elapsedSeconds;
+        values[2] = op.toString();
+        values[3] = latency.getTotalCount();
+        values[4] = opsPerSecond;
+        values[5] = errors;
+        values[6] = inFlight;
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            values[7 + i] = millis(latency.getValueAtPercentile(PERCENTILES[i]));
+        }
+        values[12] = millis(latency.getMaxValue());
+        values[13] = millis(latency.getMean());
+        values[14] = corrected == null ? null : millis(corrected.getValueAtPercentile(99));
+        values[15] = primary;
+        values[16] = replLag == null ? null : String.format(Locale.ROOT, "%.3f", replLag);
+
+        StringBuilder row = new StringBuilder(256);
+        if (json) {
+            row.append('{');
+            for (int i = 0; i < COLUMNS.length; i++) {
+                if (values[i] == null) {
+                    continue;
+                }
+                if (row.length() > 1) {
+                    row.append(',');
+                }
+                row.append('"').append(COLUMNS[i]).append("\":");
+                // time, op and primary are the only strings, the numbers are already formatted
+                if (i == 0 || i == 2 || i == 15) {
+                    appendString(row, values[i].toString());
+                } else {
+                    row.append(values[i]);
+                }
+            }
+            row.append('}');
+        } else {
+            for (int i = 0; i < COLUMNS.length; i++) {
+                if (i > 0) {
+                    row.append(',');
+                }
+                if (values[i] != null) {
+                    row.append(values[i]);
+                }
+            }
+        }
+        out.write(row.toString());
+        out.newLine();
+    }
+
+    private static void appendString(StringBuilder row, String s) {
+        row.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                row.append('\\').append(c);
+            } else if (c < 0x20) {
+                row.append(String.format("\\u%04x", (int) c));
+            } else {
+                row.append(c);
+            }
+        }
+        row.append('"');
+    }
+
+    // Histograms are in microseconds
+    private static String millis(double micros) {
+        return String.format(Locale.ROOT, "%.3f", micros / 1000.0);
+    }
+
+    synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    synchronized void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,139 @@
+package com.johnlpage.pocdriver;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.HdrHistogram.Histogram;
+import org.apache.commons.cli.ParseException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Phases run one after another from --scenario, sharing one client and remembering
+ * where each worker got to. A file looks like
+ * <pre>
+ * {"phases": [
+ *   {"name": "load", "args": "-i 100 -t 16 -b 1000 -x 2 --targetdocs 10000000"},
+ *   {"name": "warm", "args": "-k 100 -d 120", "warmup": true},
+ *   {"name": "run", "args": "-i 10 -k 70 -u 20 -t 32 -d 600"}
+ * ]}
+ * </pre>
+ * Each phase's args come before the rest of the command line so they win where both set
+ * something. -e only empties the collection before the first phase, unless a phase asks.
+ * Warm-up phases get their report but are left out of the summary at the end.
+ * The client is built once from the first phase, so later phases can't change -c or --drivermetrics.
+ */
+public class Scenario {
+    static class Phase {
+        String name;
+        String args = "";
+        boolean warmup = false;
+        transient POCTestOptions testOpts;
+    }
+
+    List<Phase> phases = new ArrayList<>();
+
+    /**
+     * @param args the whole command line, --scenario and all
+     */
+    static Scenario load(String file, String[] args) throws ParseException {
+        Scenario scenario;
+        try {
+            scenario = new Gson().fromJson(new String(Files.readAllBytes(Paths.get(file))), Scenario.class);
+        } catch (IOException | JsonParseException e) {
+            throw new ParseException("Cannot read scenario " + file + ": " + e.getMessage());
+        }
+        if (scenario == null || scenario.phases == null || scenario.phases.isEmpty()) {
+            throw new ParseException("Scenario " + file + " has no phases");
+        }
+
+        List<String> common = new ArrayList<>();
+        List<String> commonAfterFirst = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--scenario")) {
+                i++;
+                continue;
+            }
+            common.add(args[i]);
+            if (!args[i].equals("-e") && !args[i].equals("--empty")) {
+                commonAfterFirst.add(args[i]);
+            }
+        }
+
+        for (int p = 0; p < scenario.phases.size(); p++) {
+            Phase phase = scenario.phases.get(p);
+            if (phase.name == null) {
+                phase.name = "phase " + (p + 1);
+            }
+            List<String> phaseArgs = new ArrayList<>();
+            if (phase.args != null && !phase.args.trim().isEmpty()) {
+                phaseArgs.addAll(Arrays.asList(phase.args.trim().split("\\s+")));
+            }
+            int ownArgs = phaseArgs.size();
+            phaseArgs.addAll(p == 0 ? common : commonAfterFirst);
+            try {
+                phase.testOpts = new POCTestOptions(phaseArgs.toArray(new String[0]));
+                if (p > 0 && changesClient(new POCTestOptions(phaseArgs.subList(0, ownArgs).toArray(new String[0])),
+                        scenario.phases.get(0).testOpts)) {
+                    throw new ParseException("-c and --drivermetrics set up the client every phase shares,"
+                            + " give them in the first phase or on the command line");
+                }
+            } catch (ParseException e) {
+                throw new ParseException("Phase '" + phase.name + "': " + e.getMessage());
+            }
+        }
+        return scenario;
+    }
+
+    // Whether a later phase's own args ask for a different client from the one it will get
+    private static boolean changesClient(POCTestOptions own, POCTestOptions first) {
+        return (!own.connectionDetails.equals(POCTestOptions.DEFAULT_CONNECTION)
+                && !own.connectionDetails.equals(first.connectionDetails))
+                || (own.driverMetrics && !first.driverMetrics);
+    }
+
+    void run() {
+        LoadRunner runner = new LoadRunner(phases.get(0).testOpts);
+        Histogram[] latency = new Histogram[OpType.ALL.length];
+        for (OpType o : OpType.ALL) {
+            latency[o.ordinal()] = LatencyRecorder.newHistogram();
+        }
+        long[] opsDone = new long[OpType.ALL.length];
+        double seconds = 0;
+
+        for (Phase phase : phases) {
+            System.out.println("========================");
+            System.out.format("Phase %s%s%n", phase.name, phase.warmup ? " (warm-up)" : "");
+            System.out.println("========================");
+            POCTestResults results = new POCTestResults(phase.testOpts);
+            runner.RunLoad(phase.testOpts, results);
+            if (phase.warmup) {
+                continue;
+            }
+            seconds += results.GetExactSecondsElapsed();
+            for (OpType o : OpType.ALL) {
+                opsDone[o.ordinal()] += results.GetOpsDone(o);
+                latency[o.ordinal()].add(results.GetTotalLatency(o));
+            }
+        }
+        runner.Close();
+
+        System.out.println("========================");
+        System.out.format("Scenario summary, %.0f seconds excluding warm-up%n", seconds);
+        for (OpType o : OpType.ALL) {
+            System.out.format("%,.1f %s per second on average%n", opsDone[o.ordinal()] / Math.max(seconds, 1e-9), o);
+        }
+        System.out.println();
+        POCTestReporter.printLatencyHeader();
+        for (OpType o : OpType.ALL) {
+            if (latency[o.ordinal()].getTotalCount() > 0) {
+                POCTestReporter.printLatencyRow(o.toString(), latency[o.ordinal()]);
+            }
+        }
+        System.out.println();
+    }
+}
@@ -0,0 +1,111 @@
+package com.johnlpage.pocdriver;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.ReplaceOptions;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * --staleness - how far behind the primary the nodes we read from are, as the workload sees it.
+ * Every so often it writes a counter with the --writeconcern, then reads it back with the
+ * key query --readpref and --readconcern until the new value shows up. The time from the
+ * write being acknowledged to it being visible is the staleness.
+ * <p>
+ * It has its own collection, {collection}_staleness, so it doesn't change document counts,
+ * and its own document per --threadIdStart so several clients can probe at once.
+ */
+public class StalenessProbe implements Runnable {
+    // Don't wait forever for a secondary that's stopped replicating
+    private static final long GIVE_UP_NANOS = TimeUnit.SECONDS.toNanos(60);
+    // Between reads while waiting - short next to any lag worth measuring
+    private static final long POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private final MongoCollection<Document> writer;
+    private final MongoCollection<Document> reader;
+    private final Document probeId;
+    private final long intervalNanos;
+    private final Recorder staleness = new Recorder(LatencyRecorder.LOWEST_MICROS, LatencyRecorder.HIGHEST_MICROS,
+            LatencyRecorder.SIGNIFICANT_DIGITS);
+    private Histogram spare;
+    private final Histogram total = LatencyRecorder.newHistogram();
+    private final LongAdder gaveUp = new LongAdder();
+    private volatile boolean stopped = false;
+    // Starts from the clock so what an earlier run left behind can't look like ours
+    private long sequence = System.currentTimeMillis() * 1000;
+    Logger logger;
+
+    StalenessProbe(MongoClient c, POCTestOptions t) {
+        logger = LoggerFactory.getLogger(StalenessProbe.class);
+        MongoCollection<Document> base = c.getDatabase(t.databaseName).getCollection(t.collectionName + "_staleness");
+        writer = t.consistency.writeConcern() != null ? base.withWriteConcern(t.consistency.writeConcern()) : base;
+        reader = t.consistency.forRead(base, OpType.KEYQUERIES);
+        probeId = new Document("probe", t.threadIdStart);
+        intervalNanos = TimeUnit.MILLISECONDS.toNanos(t.stalenessMs);
+    }
+
+    public void run() {
+        while (!stopped) {
+            long next = System.nanoTime() + intervalNanos;
+            try {
+                probe();
+            } catch (MongoException e) {
+                // Failovers show up in the workers' errors, just try again next time
+                logger.debug("Staleness probe failed: {}", e.getMessage());
+            }
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+
+    private void probe() {
+        long mine = ++sequence;
+        writer.replaceOne(new Document("_id", probeId), new Document("_id", probeId).append("seq", mine),
+                new ReplaceOptions().upsert(true));
+        long written = System.nanoTime();
+        while (!stopped) {
+            Document seen = reader.find(new Document("_id", probeId)).first();
+            long now = System.nanoTime();
+            if (seen != null && seen.getLong("seq") >= mine) {
+                staleness.recordValue(Math.min(Math.max((now - written) / 1000, 0), LatencyRecorder.HIGHEST_MICROS));
+                return;
+            }
+            if (now - written > GIVE_UP_NANOS) {
+                gaveUp.increment();
+                return;
+            }
+            LockSupport.parkNanos(POLL_NANOS);
+        }
+    }
+
+    void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Staleness since the last call, also added to the total - reporter only
+     */
+    Histogram sampleStaleness() {
+        spare = staleness.getIntervalHistogram(spare);
+        total.add(spare);
+        return spare;
+    }
+
+    Histogram totalStaleness() {
+        return total;
+    }
+
+    long gaveUp() {
+        return gaveUp.sum();
+    }
+}
@@ -3,7 +3,11 @@ package com.johnlpage.pocdriver;
 
 import de.svenjacobs.loremipsum.LoremIpsum;
 import org.bson.BsonBinarySubType;
+import org.bson.BsonBinaryWriter;
 import org.bson.Document;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
 import org.bson.types.Binary;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -95,14 +99,18 @@ public class TestRecord {
         return 1; // Text
     }
 
-    private String CreateString(int length) {
-
+    static String getLoremText() {
         if (loremText == null) {
-            loremText = "";
             LoremIpsum loremIpsum = new LoremIpsum();
 
             loremText = loremIpsum.getWords(1000);
         }
+        return loremText;
+    }
+
+    String CreateString(int length) {
+
+        String loremText = getLoremText();
 
         StringBuilder sb = new StringBuilder();
         double d = rng.nextDouble();
@@ -189,6 +197,17 @@ public class TestRecord {
         return fieldNo - seq;
     }
 
+    /**
+     * @return this record encoded as BSON, as it would go over the wire
+     */
+    byte[] toBson() {
+        //Thanks to Ross Lawley for this bit of black magic
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        BsonBinaryWriter binaryWriter = new BsonBinaryWriter(buffer);
+        new DocumentCodec().encode(binaryWriter, internalDoc, EncoderContext.builder().build());
+        return buffer.toByteArray();
+    }
+
     public List<String> listFields() {
         List<String> fields = new ArrayList<>();
         collectFields(internalDoc, "", fields);
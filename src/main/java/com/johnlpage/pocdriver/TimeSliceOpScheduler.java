@@ -0,0 +1,48 @@
+package com.johnlpage.pocdriver;
+
+import java.util.Random;
+
+/**
+ * The default time share mode - each weight is how many milliseconds of every cycle
+ * are spent starting that type of op, so a slow op type can't throttle a fast one.
+ * <p>
+ * Every worker gets a random offset into the cycle, otherwise all the threads would
+ * switch op type in the same millisecond and hit the server in synchronised bursts.
+ */
+public class TimeSliceOpScheduler implements OpScheduler {
+    private final long[] cycleEnds;
+    private final long cycle;
+    private final long offset;
+    private final boolean noWeights;
+
+    TimeSliceOpScheduler(int[] weights, Random rng) {
+        cycleEnds = new long[weights.length];
+        long total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            total += Math.max(weights[i], 0);
+            cycleEnds[i] = total;
+        }
+        cycle = Math.max(total, 1);
+        noWeights = total == 0;
+        offset = (long) (rng.nextDouble() * cycle);
+    }
+
+    public int nextOp() {
+        // nanoTime rather than the wall clock - no allocation and cheap to call per op
+        return opAt(System.nanoTime() / 1_000_000);
+    }
+
+    int opAt(long millis) {
+        if (noWeights) {
+            return OpScheduler.noWeightsOp(cycleEnds.length);
+        }
+        long slot = Math.floorMod(millis + offset, cycle);
+        // Only a handful of op types so a scan beats anything cleverer
+        for (int i = 0; i < cycleEnds.length; i++) {
+            if (slot < cycleEnds[i]) {
+                return i;
+            }
+        }
+        return cycleEnds.length - 1;
+    }
+}
@@ -0,0 +1,178 @@
+package com.johnlpage.pocdriver;
+
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+import com.mongodb.client.MongoClient;
+import com.mongodb.connection.ClusterDescription;
+import com.mongodb.connection.ClusterType;
+import com.mongodb.connection.ServerDescription;
+import com.mongodb.event.ClusterDescriptionChangedEvent;
+import com.mongodb.event.ClusterListener;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the replica set while the test runs so a dip in throughput can be matched to
+ * an election. Primary changes come from the driver's own view of the cluster, which it
+ * keeps current with hello, and replication lag from polling replSetGetStatus on a thread
+ * of its own so a slow answer during an election doesn't hold up the reports.
+ */
+public class TopologyMonitor implements ClusterListener {
+    // replSetGetStatus errors that asking again won't fix
+    private static final int UNAUTHORIZED = 13;
+    private static final int COMMAND_NOT_FOUND = 59;
+    private static final int NO_REPLICATION_ENABLED = 76;
+
+    /**
+     * The primary changed - from or to is null while there isn't one
+     */
+    static class Change {
+        final long nanos;
+        final String from;
+        final String to;
+
+        Change(long nanos, String from, String to) {
+            this.nanos = nanos;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private final List<Change> changes = new CopyOnWriteArrayList<>();
+    private volatile String primary;
+    private volatile ClusterType type = ClusterType.UNKNOWN;
+    // Secondary name to seconds behind the primary, as of the last poll
+    private volatile Map<String, Double> lag = Collections.emptyMap();
+    private ScheduledExecutorService poller;
+    Logger logger;
+
+    TopologyMonitor() {
+        logger = LoggerFactory.getLogger(TopologyMonitor.class);
+    }
+
+    @Override
+    public void clusterDescriptionChanged(ClusterDescriptionChangedEvent event) {
+        type = event.getNewDescription().getType();
+        primaryIs(primaryOf(event.getNewDescription()), System.nanoTime());
+    }
+
+    void primaryIs(String now, long nanos) {
+        String was = primary;
+        if (Objects.equals(was, now)) {
+            return;
+        }
+        primary = now;
+        // Before the first primary is found is just connecting
+        if (was != null || !changes.isEmpty()) {
+            changes.add(new Change(nanos, was, now));
+            logger.info("Primary changed from {} to {}", was == null ? "none" : was, now == null ? "none" : now);
+        }
+    }
+
+    private static String primaryOf(ClusterDescription cluster) {
+        for (ServerDescription server : cluster.getServerDescriptions()) {
+            if (server.isPrimary()) {
+                return server.getAddress().toString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Start polling replication lag every so many seconds. Stops by itself if the
+     * deployment isn't a replica set, or is sharded so mongos can't tell us, or we
+     * aren't allowed to ask
+     */
+    void start(MongoClient client, int seconds) {
+        poller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "topology-monitor");
+            t.setDaemon(true);
+            return t;
+        });
+        poller.scheduleWithFixedDelay(() -> {
+            if (type == ClusterType.SHARDED || type == ClusterType.STANDALONE) {
+                logger.info("Not tracking replication lag on a {} cluster", type.toString().toLowerCase());
+                poller.shutdown();
+                return;
+            }
+            try {
+                // Any member can answer, so we still hear during an election
+                Document status = client.getDatabase("admin")
+                        .runCommand(new Document("replSetGetStatus", 1), ReadPreference.primaryPreferred());
+                lag = lagFromStatus(status);
+            } catch (MongoException e) {
+                if (e.getCode() == NO_REPLICATION_ENABLED || e.getCode() == COMMAND_NOT_FOUND
+                        || e.getCode() == UNAUTHORIZED) {
+                    logger.info("Not tracking replication lag: {}", e.getMessage());
+                    poller.shutdown();
+                } else {
+                    lag = Collections.emptyMap();
+                }
+            }
+        }, 0, Math.max(seconds, 1), TimeUnit.SECONDS);
+    }
+
+    void stop() {
+        if (poller != null) {
+            poller.shutdownNow();
+        }
+    }
+
+    /**
+     * @return how far each secondary's last applied op is behind the primary's, in seconds
+     */
+    static Map<String, Double> lagFromStatus(Document status) {
+        List<Document> members = status.getList("members", Document.class);
+        Date primaryOptime = null;
+        for (Document m : members) {
+            if ("PRIMARY".equals(m.getString("stateStr"))) {
+                primaryOptime = m.getDate("optimeDate");
+            }
+        }
+        if (primaryOptime == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, Double> rval = new LinkedHashMap<>();
+        for (Document m : members) {
+            if ("SECONDARY".equals(m.getString("stateStr")) && m.getDate("optimeDate") != null) {
+                rval.put(m.getString("name"), Math.max(primaryOptime.getTime() - m.getDate("optimeDate").getTime(), 0) / 1000.0);
+            }
+        }
+        return rval;
+    }
+
+    String primary() {
+        return primary;
+    }
+
+    Map<String, Double> lag() {
+        return lag;
+    }
+
+    double maxLag() {
+        double max = 0;
+        for (double l : lag.values()) {
+            max = Math.max(max, l);
+        }
+        return max;
+    }
+
+    /**
+     * Every change so far, oldest first
+     */
+    List<Change> changes() {
+        return changes;
+    }
+}
@@ -0,0 +1,46 @@
+package com.johnlpage.pocdriver;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BatchPipelineTest {
+
+    @Test
+    public void testNeverMoreThanDepthInFlight() throws InterruptedException {
+        BatchPipeline pipeline = new BatchPipeline(3);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+        for (int i = 0; i < 50; i++) {
+            pipeline.submit(() -> {
+                peak.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException ignored) {
+                }
+                inFlight.decrementAndGet();
+                done.incrementAndGet();
+            });
+        }
+        pipeline.close();
+        assertEquals(50, done.get());
+        assertEquals(3, peak.get());
+    }
+
+    @Test
+    public void testDepthOneRunsInline() throws InterruptedException {
+        BatchPipeline pipeline = new BatchPipeline(1);
+        Thread caller = Thread.currentThread();
+        CountDownLatch ran = new CountDownLatch(1);
+        pipeline.submit(() -> {
+            assertSame(caller, Thread.currentThread());
+            ran.countDown();
+        });
+        assertEquals(0, ran.getCount());
+        pipeline.close();
+    }
+}
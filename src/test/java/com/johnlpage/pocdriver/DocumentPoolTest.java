@@ -0,0 +1,71 @@
+package com.johnlpage.pocdriver;
+
+import org.apache.commons.cli.ParseException;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class DocumentPoolTest {
+
+    private static DocumentPool pool(int size, int generators) throws ParseException {
+        return new DocumentPool(new POCTestOptions(new String[]{"--docpool", String.valueOf(size),
+                "--generators", String.valueOf(generators)}));
+    }
+
+    @Test
+    public void testTakeSetsId() throws ParseException, InterruptedException {
+        DocumentPool pool = pool(16, 2);
+        pool.start();
+        try {
+            Set<Document> ids = new HashSet<>();
+            for (int i = 0; i < 200; i++) {
+                Document doc = pool.take(3, i);
+                Document id = (Document) doc.get("_id");
+                assertEquals(3, (int) id.getInteger("w"));
+                assertEquals(i, (int) id.getInteger("i"));
+                // _id stays the first field
+                assertEquals("_id", doc.keySet().iterator().next());
+                ids.add(id);
+            }
+            assertEquals(200, ids.size());
+        } finally {
+            pool.stop();
+        }
+    }
+
+    @Test
+    public void testEmptyWaitsCounted() throws ParseException, InterruptedException {
+        DocumentPool pool = pool(1, 1);
+        // Nothing generated until after we ask, so the first take has to wait
+        Thread starter = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            pool.start();
+        });
+        starter.start();
+        try {
+            assertNotNull(pool.take(0, 0));
+            assertTrue(pool.emptyWaits() >= 1);
+            assertTrue(pool.occupancy() <= pool.capacity());
+        } finally {
+            starter.join();
+            pool.stop();
+        }
+    }
+
+    @Test
+    public void testStopEndsGenerators() throws ParseException {
+        DocumentPool pool = pool(4, 3);
+        pool.start();
+        pool.stop();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            assertFalse(t.getName() + " still running", t.getName().startsWith("docpool-") && t.isAlive());
+        }
+    }
+}
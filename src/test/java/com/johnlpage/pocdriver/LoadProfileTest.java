@@ -0,0 +1,46 @@
+package com.johnlpage.pocdriver;
+
+import org.apache.commons.cli.ParseException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LoadProfileTest {
+
+    @Test
+    public void testRampHoldSpike() throws ParseException {
+        LoadProfile profile = LoadProfile.parse("ramp 0 50000 10m; hold 50000 20m; spike 5x 30s; hold 1x 1m");
+        assertEquals(1890, profile.totalSeconds(), 0.001);
+        assertEquals(LoadProfile.MIN_RATE, profile.rateAt(0), 0.001);
+        assertEquals(25000, profile.rateAt(300), 0.001);
+        assertEquals(50000, profile.rateAt(1000), 0.001);
+        assertEquals(250000, profile.rateAt(1810), 0.001);
+        // Back down after the spike, and the last rate holds after the end
+        assertEquals(50000, profile.rateAt(1850), 0.001);
+        assertEquals(50000, profile.rateAt(5000), 0.001);
+    }
+
+    @Test
+    public void testSine() throws ParseException {
+        LoadProfile profile = LoadProfile.parse("sine 10000 50000 1h 4h");
+        assertEquals(10000, profile.rateAt(0), 0.001);
+        assertEquals(30000, profile.rateAt(900), 0.001);
+        assertEquals(50000, profile.rateAt(1800), 0.001);
+        assertEquals(10000, profile.rateAt(3600), 0.001);
+    }
+
+    @Test
+    public void testMixPerSegment() throws ParseException {
+        LoadProfile profile = LoadProfile.parse("# load then read\nhold 1000 60 mix=i:100\nhold 5000 60 mix=i:10,k:90\nhold 5000 60");
+        assertArrayEquals(new int[]{100, 0, 0, 0, 0, 0, 0}, profile.mixAt(30));
+        assertArrayEquals(new int[]{10, 90, 0, 0, 0, 0, 0}, profile.mixAt(90));
+        assertNull(profile.mixAt(150));
+        assertTrue(profile.uses("k"));
+        assertFalse(profile.uses("D"));
+    }
+
+    @Test(expected = ParseException.class)
+    public void testBadSegment() throws ParseException {
+        LoadProfile.parse("ramp 0 100");
+    }
+}
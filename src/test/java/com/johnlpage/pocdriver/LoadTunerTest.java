@@ -0,0 +1,41 @@
+package com.johnlpage.pocdriver;
+
+import org.apache.commons.cli.ParseException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LoadTunerTest {
+
+    private static LoadTuner newTuner(String start) throws ParseException {
+        POCTestOptions testOpts = new POCTestOptions(new String[]{"--slo", "10", "-q", start});
+        return new LoadTuner(testOpts, new POCTestResults(testOpts));
+    }
+
+    @Test
+    public void testSearchConvergesOnCapacity() throws ParseException {
+        LoadTuner tuner = newTuner("1000");
+        int capacity = 7300;
+        int rate = 1000;
+        int steps = 0;
+        while (rate != 0) {
+            rate = tuner.nextRate(rate, rate <= capacity);
+            steps++;
+        }
+        assertTrue(tuner.bestRate <= capacity);
+        assertTrue(tuner.failedRate > capacity);
+        assertTrue(tuner.failedRate - tuner.bestRate <= tuner.bestRate * LoadTuner.TOLERANCE);
+        assertTrue("took " + steps + " steps", steps < 12);
+    }
+
+    @Test
+    public void testGivesUpWhenNothingPasses() throws ParseException {
+        LoadTuner tuner = newTuner("8");
+        int rate = 8;
+        while (rate != 0) {
+            rate = tuner.nextRate(rate, false);
+        }
+        assertEquals(0, tuner.bestRate);
+        assertEquals(1, tuner.failedRate);
+    }
+}
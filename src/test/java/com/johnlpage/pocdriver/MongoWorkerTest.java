@@ -0,0 +1,44 @@
+package com.johnlpage.pocdriver;
+
+import com.mongodb.bulk.BulkWriteError;
+import org.bson.BsonDocument;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MongoWorkerTest {
+
+    private static BulkWriteError error(int code, int index) {
+        return new BulkWriteError(code, "failed", new BsonDocument(), index);
+    }
+
+    @Test
+    public void testOrderedResendsOnlyWhatWasNotTried() {
+        List<String> sent = Arrays.asList("a", "b", "c", "d", "e");
+        assertEquals(Arrays.asList("d", "e"),
+                MongoWorker.remainingAfter(sent, Collections.singletonList(error(11000, 2)), true));
+        // Failed on the last one, nothing left
+        assertTrue(MongoWorker.remainingAfter(sent, Collections.singletonList(error(11000, 4)), true).isEmpty());
+    }
+
+    @Test
+    public void testUnorderedTriedEverything() {
+        List<String> sent = Arrays.asList("a", "b", "c");
+        assertTrue(MongoWorker.remainingAfter(sent, Arrays.asList(error(11000, 0), error(121, 2)), false).isEmpty());
+    }
+
+    @Test
+    public void testTransientErrorsResent() {
+        // NotWritablePrimary goes again along with everything after it
+        List<String> sent = Arrays.asList("a", "b", "c", "d", "e");
+        assertEquals(Arrays.asList("c", "d", "e"),
+                MongoWorker.remainingAfter(sent, Collections.singletonList(error(10107, 2)), true));
+        // Duplicate key and failed validation are dropped, ShutdownInProgress goes again
+        assertEquals(Collections.singletonList("b"), MongoWorker.remainingAfter(Arrays.asList("a", "b", "c"),
+                Arrays.asList(error(11000, 0), error(91, 1), error(121, 2)), false));
+    }
+}
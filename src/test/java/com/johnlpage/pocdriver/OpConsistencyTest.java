@@ -0,0 +1,49 @@
+package com.johnlpage.pocdriver;
+
+import org.apache.commons.cli.ParseException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OpConsistencyTest {
+
+    @Test
+    public void testSameForAllReads() throws ParseException {
+        OpConsistency c = OpConsistency.parse("secondaryPreferred", "majority", null);
+        assertEquals("secondaryPreferred", c.readPreference(OpType.KEYQUERIES).getName());
+        assertEquals("secondaryPreferred", c.readPreference(OpType.RANGEQUERIES).getName());
+        assertNotNull(c.readConcern(OpType.RANGEQUERIES));
+        assertNull(c.readPreference(OpType.INSERTS));
+        assertNull(c.writeConcern());
+    }
+
+    @Test
+    public void testPerOpWithTagSets() throws ParseException {
+        OpConsistency c = OpConsistency.parse("k=nearest(dc=east,rack=1)(); r=secondary", "k=local", "majority,j,wtimeout=5000");
+        assertEquals("nearest", c.readPreference(OpType.KEYQUERIES).getName());
+        assertEquals("secondary", c.readPreference(OpType.RANGEQUERIES).getName());
+        assertNotNull(c.readConcern(OpType.KEYQUERIES));
+        assertNull(c.readConcern(OpType.RANGEQUERIES));
+        assertNotNull(c.writeConcern());
+    }
+
+    @Test
+    public void testBadSpecsRejected() {
+        String[][] bad = {
+                {"sometimes", null, null},
+                {"primary(dc=east)", null, null},
+                {"nearest(dc)", null, null},
+                {null, "eventually", null},
+                {null, null, "0"},
+                {null, null, "majority,wtimeout=soon"},
+        };
+        for (String[] b : bad) {
+            try {
+                OpConsistency.parse(b[0], b[1], b[2]);
+                fail("Accepted " + String.join(" ", String.valueOf(b[0]), String.valueOf(b[1]), String.valueOf(b[2])));
+            } catch (ParseException expected) {
+                // good
+            }
+        }
+    }
+}
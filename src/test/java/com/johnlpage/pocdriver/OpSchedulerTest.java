@@ -0,0 +1,73 @@
+package com.johnlpage.pocdriver;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class OpSchedulerTest {
+
+    @Test
+    public void testRatioMatchesWeights() {
+        int[] weights = new int[]{50, 30, 0, 20};
+        RatioOpScheduler scheduler = new RatioOpScheduler(weights, 42);
+        int[] counts = new int[weights.length];
+        int draws = 1_000_000;
+        for (int i = 0; i < draws; i++) {
+            counts[scheduler.nextOp()]++;
+        }
+        assertEquals(0.5, counts[0] / (double) draws, 0.01);
+        assertEquals(0.3, counts[1] / (double) draws, 0.01);
+        assertEquals(0, counts[2]);
+        assertEquals(0.2, counts[3] / (double) draws, 0.01);
+    }
+
+    @Test
+    public void testRatioNothingToChoose() {
+        RatioOpScheduler scheduler = new RatioOpScheduler(new int[]{0, 0, 0}, 1);
+        assertEquals(2, scheduler.nextOp());
+    }
+
+    @Test
+    public void testNoWeightsMeansUpdates() {
+        // Not the last op, array updates, which need -a
+        int[] weights = new int[]{0, 0, 0, 0, 0, 0, 0};
+        RatioOpScheduler ratio = new RatioOpScheduler(weights, 1);
+        TimeSliceOpScheduler timeSlice = new TimeSliceOpScheduler(weights, new Random());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(OpScheduler.NO_WEIGHTS_OP, ratio.nextOp());
+            assertEquals(OpScheduler.NO_WEIGHTS_OP, timeSlice.opAt(i));
+        }
+    }
+
+    @Test
+    public void testTimeSliceSharesEachCycle() {
+        // 100ms of inserts then 50ms of key queries
+        TimeSliceOpScheduler scheduler = new TimeSliceOpScheduler(new int[]{100, 50, 0, 0}, new Random());
+        int[] counts = new int[4];
+        for (long ms = 0; ms < 1500; ms++) {
+            counts[scheduler.opAt(ms)]++;
+        }
+        assertEquals(1000, counts[0]);
+        assertEquals(500, counts[1]);
+        assertEquals(0, counts[2] + counts[3]);
+    }
+
+    @Test
+    public void testTimeSliceWorkersOutOfPhase() {
+        Random rng = new Random(7);
+        int[] weights = new int[]{500, 500};
+        boolean differ = false;
+        TimeSliceOpScheduler first = new TimeSliceOpScheduler(weights, rng);
+        for (int i = 0; i < 10 && !differ; i++) {
+            TimeSliceOpScheduler other = new TimeSliceOpScheduler(weights, rng);
+            for (long ms = 0; ms < 1000; ms += 10) {
+                if (first.opAt(ms) != other.opAt(ms)) {
+                    differ = true;
+                }
+            }
+        }
+        assertTrue(differ);
+    }
+}
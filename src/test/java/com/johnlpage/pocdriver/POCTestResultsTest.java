@@ -0,0 +1,97 @@
+package com.johnlpage.pocdriver;
+
+import com.mongodb.MongoException;
+import com.mongodb.MongoSocketReadTimeoutException;
+import com.mongodb.ServerAddress;
+import org.HdrHistogram.Histogram;
+import org.apache.commons.cli.ParseException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class POCTestResultsTest {
+
+    @Test
+    public void testLatenciesMergedAcrossWorkers() throws ParseException {
+        POCTestResults results = new POCTestResults(new POCTestOptions(new String[]{}));
+        LatencyRecorder first = results.newLatencyRecorder();
+        LatencyRecorder second = results.newLatencyRecorder();
+
+        first.record(OpType.KEYQUERIES, 200, 90);
+        second.record(OpType.KEYQUERIES, 80_000, 10);
+        results.SampleLatencies();
+
+        Histogram interval = results.GetIntervalLatency(OpType.KEYQUERIES);
+        assertEquals(100, interval.getTotalCount());
+        assertEquals(80_000, interval.getMaxValue(), 80);
+        // 10 of them were over 50ms
+        assertEquals(10L, (long) results.GetSlowOps(OpType.KEYQUERIES, 50));
+        assertEquals(0L, (long) results.GetSlowOps(OpType.KEYQUERIES, 100));
+    }
+
+    @Test
+    public void testIntervalResetTotalsKept() throws ParseException {
+        POCTestResults results = new POCTestResults(new POCTestOptions(new String[]{}));
+        LatencyRecorder recorder = results.newLatencyRecorder();
+
+        recorder.record(OpType.INSERTS, 1000, 512);
+        results.SampleLatencies();
+        recorder.record(OpType.INSERTS, 1000, 512);
+        results.SampleLatencies();
+        results.SampleLatencies();
+
+        assertEquals(0, results.GetIntervalLatency(OpType.INSERTS).getTotalCount());
+        assertEquals(1024, results.GetTotalLatency(OpType.INSERTS).getTotalCount());
+    }
+
+    @Test
+    public void testCorrectedLatencyKeptSeparately() throws ParseException {
+        POCTestResults results = new POCTestResults(new POCTestOptions(new String[]{}));
+        LatencyRecorder recorder = results.newLatencyRecorder();
+
+        // Quick op, but it started 40ms late
+        recorder.record(OpType.UPDATES, 500, 40_500, 1);
+        results.SampleLatencies();
+
+        assertEquals(500, results.GetIntervalLatency(OpType.UPDATES).getMaxValue(), 1);
+        assertEquals(40_500, results.GetIntervalCorrectedLatency(OpType.UPDATES).getMaxValue(), 50);
+        assertEquals(0, results.GetIntervalCorrectedLatency(OpType.INSERTS).getTotalCount());
+    }
+
+    @Test
+    public void testErrorsCountedByClass() throws ParseException {
+        POCTestResults results = new POCTestResults(new POCTestOptions(new String[]{}));
+        results.RecordErrors(OpType.INSERTS, new MongoException(10107, "not primary"), 5);
+        results.RecordErrors(OpType.INSERTS, new MongoSocketReadTimeoutException("timed out",
+                new ServerAddress("localhost", 27017), null), 2);
+        results.RecordErrors(OpType.INSERTS, new MongoException(2, "bad value"), 1);
+
+        assertEquals(8, results.GetErrors(OpType.INSERTS));
+        assertEquals(5, results.GetErrors(OpType.INSERTS, ErrorClass.NOT_PRIMARY));
+        assertEquals(2, results.GetErrors(OpType.INSERTS, ErrorClass.TIMEOUT));
+        assertEquals(1, results.GetErrors(OpType.INSERTS, ErrorClass.OTHER));
+    }
+
+    @Test
+    public void testOutageEndsWithFirstOpStartedAfterIt() throws ParseException, InterruptedException {
+        POCTestResults results = new POCTestResults(new POCTestOptions(new String[]{}));
+        long before = System.nanoTime();
+        // A bad op isn't an outage
+        results.RecordErrors(OpType.UPDATES, ErrorClass.OTHER, 1);
+        assertEquals(0, results.GetCurrentOutageNanos());
+
+        Thread.sleep(2);
+        results.RecordErrors(OpType.UPDATES, ErrorClass.NETWORK, 1);
+        assertTrue(results.GetCurrentOutageNanos() > 0);
+        // Was on its way before the failure, says nothing about now
+        results.RecordSuccess(before);
+        assertTrue(results.GetOutages().isEmpty());
+
+        Thread.sleep(2);
+        results.RecordSuccess(System.nanoTime());
+        assertEquals(0, results.GetCurrentOutageNanos());
+        assertEquals(1, results.GetOutages().size());
+        long[] outage = results.GetOutages().get(0);
+        assertTrue(outage[1] - outage[0] >= 2_000_000);
+    }
+}
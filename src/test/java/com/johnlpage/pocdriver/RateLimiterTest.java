@@ -0,0 +1,70 @@
+package com.johnlpage.pocdriver;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RateLimiterTest {
+
+    // Stands in for System.nanoTime()
+    private long now = 1_000_000_000L;
+
+    @Test
+    public void testSlotsEvenlySpaced() {
+        for (double rate : new double[]{10, 1000, 1_000_000}) {
+            RateLimiter limiter = new RateLimiter(rate, true, () -> now);
+            long first = limiter.nextSlot();
+            long last = first;
+            for (int i = 0; i < 10_000; i++) {
+                last = limiter.nextSlot();
+            }
+            double achieved = 10_000 * 1e9 / (last - first);
+            assertEquals("at " + rate + " ops/s", rate, achieved, rate * 0.01);
+        }
+    }
+
+    @Test
+    public void testBacklogKeptInOpenLoop() {
+        RateLimiter limiter = new RateLimiter(1000, true, () -> now);
+        long first = limiter.nextSlot();
+        // Fall a second behind - those slots still have to be used
+        now += 1_000_000_000L;
+        assertEquals(first + 1_000_000, limiter.nextSlot());
+    }
+
+    @Test
+    public void testNoBurstAfterStall() {
+        RateLimiter limiter = new RateLimiter(1000, false, () -> now);
+        limiter.nextSlot();
+        now += 1_000_000_000L;
+        assertEquals(now, limiter.nextSlot());
+        assertEquals(now + 1_000_000, limiter.nextSlot());
+    }
+
+    @Test
+    public void testSetRateMidRun() {
+        RateLimiter limiter = new RateLimiter(100, true, () -> now);
+        for (int i = 0; i < 50; i++) {
+            limiter.nextSlot();
+        }
+        // Behind at the old rate, the new one starts from now
+        now += 100_000_000L;
+        limiter.setRate(10_000);
+        assertEquals(now, limiter.nextSlot());
+        assertEquals(now + 100_000, limiter.nextSlot());
+        assertEquals(10_000, limiter.getRate(), 0.001);
+    }
+
+    @Test
+    public void testAdjustRateKeepsSchedule() {
+        RateLimiter limiter = new RateLimiter(1, true, () -> now);
+        long first = limiter.nextSlot();
+        // The next slot is a second off, far too late at the new rate
+        limiter.adjustRate(1000);
+        assertEquals(first + 1_000_000, limiter.nextSlot());
+        // A backlog is kept through a small change
+        now += 10_000_000L;
+        limiter.adjustRate(900);
+        assertEquals(first + 2_000_000, limiter.nextSlot());
+    }
+}
@@ -0,0 +1,48 @@
+package com.johnlpage.pocdriver;
+
+import org.bson.Document;
+import org.bson.codecs.DocumentCodec;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class RawRecordTemplateTest {
+
+    @Test
+    public void testRecordsPatchedFromTemplate() {
+        // fld0 is a long, fld1 a date and fld2 a string
+        TestRecord tr = new TestRecord(10, 0, 24, 1, 0, 1000, new int[2], 16, null);
+        Document template = tr.internalDoc;
+        RawRecordTemplate raw = new RawRecordTemplate(tr.toBson(), 1000, 42);
+        String lorem = TestRecord.getLoremText();
+
+        Set<Long> longs = new HashSet<>();
+        Set<Date> dates = new HashSet<>();
+        Set<String> strings = new HashSet<>();
+        for (int i = 0; i < 10; i++) {
+            Document doc = raw.newRecord(7, 1000 + i).decode(new DocumentCodec());
+            assertEquals(template.keySet(), doc.keySet());
+
+            Document id = (Document) doc.get("_id");
+            assertEquals(7, (int) id.getInteger("w"));
+            assertEquals(1000 + i, (int) id.getInteger("i"));
+
+            assertTrue(doc.getLong("fld0") >= 0);
+            longs.add(doc.getLong("fld0"));
+            assertFalse(doc.getDate("fld1").after(new Date()));
+            dates.add(doc.getDate("fld1"));
+            String text = doc.getString("fld2");
+            assertEquals(template.getString("fld2").length(), text.length());
+            assertTrue(lorem.contains(text));
+            strings.add(text);
+        }
+        // Each record gets values of its own
+        assertTrue(longs.size() > 1);
+        assertTrue(dates.size() > 1);
+        assertTrue(strings.size() > 1);
+    }
+}
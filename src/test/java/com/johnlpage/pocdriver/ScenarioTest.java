@@ -0,0 +1,67 @@
+package com.johnlpage.pocdriver;
+
+import org.apache.commons.cli.ParseException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class ScenarioTest {
+
+    @Test
+    public void testPhaseOptions() throws IOException, ParseException {
+        Path file = Files.createTempFile("scenario", ".json");
+        try {
+            Files.write(file, ("{\"phases\": ["
+                    + "{\"name\": \"load\", \"args\": \"-i 100 -t 16 --targetdocs 1000\"},"
+                    + "{\"args\": \"-k 100\", \"warmup\": true},"
+                    + "{\"name\": \"run\", \"args\": \"-i 10 -k 90 -d 600\"}]}").getBytes());
+            Scenario scenario = Scenario.load(file.toString(),
+                    new String[]{"-e", "--scenario", file.toString(), "-t", "8", "-d", "60"});
+
+            assertEquals(3, scenario.phases.size());
+            POCTestOptions load = scenario.phases.get(0).testOpts;
+            assertTrue(load.emptyFirst);
+            assertEquals(16, load.numThreads);
+            assertEquals(1000, load.targetDocs);
+            assertNull(load.scenarioFile);
+
+            Scenario.Phase warm = scenario.phases.get(1);
+            assertEquals("phase 2", warm.name);
+            assertTrue(warm.warmup);
+            // Only the first phase empties the collection
+            assertFalse(warm.testOpts.emptyFirst);
+            assertEquals(8, warm.testOpts.numThreads);
+            assertEquals(60, warm.testOpts.duration);
+
+            assertEquals(600, scenario.phases.get(2).testOpts.duration);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testLaterPhaseCannotChangeClient() throws IOException, ParseException {
+        Path file = Files.createTempFile("scenario", ".json");
+        try {
+            // Given once up front is fine
+            Files.write(file, ("{\"phases\": [{\"args\": \"-c mongodb://a:27017 -i 100\"},"
+                    + "{\"args\": \"-k 100\"}]}").getBytes());
+            Scenario.load(file.toString(), new String[]{"--scenario", file.toString(), "--drivermetrics"});
+
+            Files.write(file, ("{\"phases\": [{\"args\": \"-i 100\"},"
+                    + "{\"args\": \"-k 100 --drivermetrics\"}]}").getBytes());
+            try {
+                Scenario.load(file.toString(), new String[]{"--scenario", file.toString()});
+                fail("Later phase changed the client");
+            } catch (ParseException e) {
+                assertTrue(e.getMessage().contains("drivermetrics"));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
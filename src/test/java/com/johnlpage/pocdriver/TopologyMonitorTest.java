@@ -0,0 +1,47 @@
+package com.johnlpage.pocdriver;
+
+import org.bson.Document;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TopologyMonitorTest {
+
+    private static Document member(String name, String state, long optime) {
+        return new Document("name", name).append("stateStr", state).append("optimeDate", new Date(optime));
+    }
+
+    @Test
+    public void testLagMeasuredFromPrimary() {
+        Document status = new Document("members", Arrays.asList(
+                member("a:27017", "SECONDARY", 99_000),
+                member("b:27017", "PRIMARY", 100_000),
+                member("c:27017", "SECONDARY", 100_000),
+                member("d:27017", "ARBITER", 0)));
+        Map<String, Double> lag = TopologyMonitor.lagFromStatus(status);
+        assertEquals(2, lag.size());
+        assertEquals(1.0, lag.get("a:27017"), 0.001);
+        assertEquals(0.0, lag.get("c:27017"), 0.001);
+    }
+
+    @Test
+    public void testElectionRecorded() {
+        TopologyMonitor monitor = new TopologyMonitor();
+        // Finding the first primary isn't a change
+        monitor.primaryIs("a:27017", 1);
+        monitor.primaryIs("a:27017", 2);
+        assertTrue(monitor.changes().isEmpty());
+
+        monitor.primaryIs(null, 3);
+        monitor.primaryIs("b:27017", 4);
+        assertEquals(2, monitor.changes().size());
+        assertEquals("a:27017", monitor.changes().get(0).from);
+        assertNull(monitor.changes().get(0).to);
+        assertEquals("b:27017", monitor.changes().get(1).to);
+        assertEquals("b:27017", monitor.primary());
+    }
+}